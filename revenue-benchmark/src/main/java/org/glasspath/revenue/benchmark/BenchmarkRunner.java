@@ -0,0 +1,58 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the normal jmh command line options, the gc profiler is always added so
+// the allocation rate (gc.alloc.rate and gc.alloc.rate.norm) is reported next to the throughput.
+// Example: java -jar benchmarks.jar CsvValueBenchmark.getDate -p dateFormat=dd-MM-yyyy
+public class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		CommandLineOptions commandLineOptions;
+		try {
+			commandLineOptions = new CommandLineOptions(args);
+		} catch (CommandLineOptionException e) {
+			System.err.println("Invalid options: " + e.getMessage()); //$NON-NLS-1$
+			System.exit(1);
+			return;
+		}
+
+		Options options = new OptionsBuilder().parent(commandLineOptions).addProfiler(GCProfiler.class).build();
+
+		new Runner(options).run();
+
+	}
+
+}
@@ -0,0 +1,167 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+import org.glasspath.common.date.DateUtils;
+import org.glasspath.common.format.FormatUtils;
+import org.glasspath.revenue.csv.CsvExporter;
+import org.glasspath.revenue.csv.CsvImporter;
+
+// Synthetic csv data, the values are created with the same formats the importer expects. The values are
+// generated from a fixed seed so every fork measures the same data. Names of days and months are always
+// english, the benchmarks run with an english default locale so the importer can parse them.
+public class CsvBenchmarkData {
+
+	public static final String[] HEADER = { "Date", "Hours", "Billable", "Description" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	public static final long START_DATE = 1577836800000L; // 2020-01-01 GMT
+	public static final long DAY = 24 * 60 * 60 * 1000L;
+	public static final int ROWS_PER_DAY = 20;
+	public static final Locale LOCALE = Locale.US;
+
+	private CsvBenchmarkData() {
+
+	}
+
+	public static int getDateFormatIndex(String pattern) {
+
+		for (int i = 0; i < CsvImporter.DATE_FORMATS.length; i++) {
+			if (CsvImporter.DATE_FORMATS[i][1].equals(pattern)) {
+				return i;
+			}
+		}
+
+		throw new IllegalArgumentException("Not one of CsvImporter.DATE_FORMATS: " + pattern); //$NON-NLS-1$
+
+	}
+
+	public static String[] createDateValues(String pattern, int count) {
+
+		getDateFormatIndex(pattern);
+
+		SimpleDateFormat dateFormat = new SimpleDateFormat(pattern, LOCALE);
+		dateFormat.setTimeZone(DateUtils.GMT_TIME_ZONE);
+
+		String[] values = new String[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = dateFormat.format(getDate(i * ROWS_PER_DAY + i % ROWS_PER_DAY));
+		}
+
+		return values;
+
+	}
+
+	public static String[] createFloatValues(int count) {
+
+		String[] values = new String[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = FormatUtils.DECIMAL_FORMAT.format(getHours(i) * (i % 7 == 0 ? 1000 : 1));
+		}
+
+		return values;
+
+	}
+
+	public static String[] createBooleanValues(int count) {
+
+		String[] values = new String[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = i % 4 == 0 ? "yes" : Boolean.toString(getBillable(i)); //$NON-NLS-1$
+		}
+
+		return values;
+
+	}
+
+	public static void createCsvFile(File file, int rowCount, String datePattern, char separator) throws IOException {
+
+		getDateFormatIndex(datePattern);
+
+		CsvExporter exporter = new CsvExporter(separator, false, StandardCharsets.UTF_8);
+		exporter.setDateFormat(datePattern, LOCALE);
+		exporter.export(file, HEADER, new RowIterator(rowCount));
+
+	}
+
+	private static Date getDate(int row) {
+		return new Date(START_DATE + (row / ROWS_PER_DAY) * DAY + (row % ROWS_PER_DAY) * 60 * 60 * 1000L);
+	}
+
+	private static float getHours(int row) {
+		return (row % 32 + 1) * 0.25f;
+	}
+
+	private static boolean getBillable(int row) {
+		return row % 3 != 0;
+	}
+
+	private static String getDescription(int row) {
+
+		// Every 10th description needs quotes for both separators
+		if (row % 10 == 0) {
+			return "Meeting; planning, review " + row; //$NON-NLS-1$
+		} else {
+			return "Work item " + row; //$NON-NLS-1$
+		}
+
+	}
+
+	private static class RowIterator implements Iterator<Object[]> {
+
+		private final int rowCount;
+		private int row = 0;
+
+		private RowIterator(int rowCount) {
+			this.rowCount = rowCount;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return row < rowCount;
+		}
+
+		@Override
+		public Object[] next() {
+
+			if (row >= rowCount) {
+				throw new NoSuchElementException();
+			}
+
+			Object[] values = new Object[] { getDate(row), getHours(row), getBillable(row), getDescription(row) };
+			row++;
+
+			return values;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,245 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JCheckBox;
+
+import org.glasspath.revenue.csv.CsvDateParser;
+import org.glasspath.revenue.csv.CsvField;
+import org.glasspath.revenue.csv.CsvImportPipeline;
+import org.glasspath.revenue.csv.CsvImporter;
+import org.glasspath.revenue.csv.CsvRowSource;
+import org.glasspath.revenue.csv.MappedCsvRowSource;
+import org.glasspath.revenue.csv.OpenCsvRowSource;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// End-to-end import of a synthetic csv file (read, convert and import every row), the "rows" counter
+// in the results is the number of imported rows per second. The benchmark runs for every combination of
+// parameters, use -p to select a part (for example -p rowCount=100000 -p dateFormat=dd-MM-yyyy) or to run
+// other values (any format of CsvImporter.DATE_FORMATS, -p separator=,). The date formats are one of each
+// kind: compact numeric, numeric with separators, numeric with time and with names of days and months.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Duser.language=en", "-Duser.country=US" })
+@State(Scope.Benchmark)
+@SuppressWarnings("nls")
+public class CsvImportBenchmark {
+
+	@Param({ "100000", "1000000" })
+	public int rowCount;
+
+	@Param({ "yyyyMMdd", "dd-MM-yyyy", "yyyy-MM-dd HH:mm:ss", "E dd MMM yyyy" })
+	public String dateFormat;
+
+	@Param({ ";" })
+	public char separator;
+
+	@Param({ "mapped", "opencsv" })
+	public String source;
+
+	@Param({ "1" })
+	public int parallelism;
+
+	private File dir;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void createFile() throws IOException {
+		dir = Files.createTempDirectory("revenue-benchmark").toFile();
+		file = new File(dir, "import.csv");
+		CsvBenchmarkData.createCsvFile(file, rowCount, dateFormat, separator);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFile() {
+		file.delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	public long importFile(RowCounter counter) throws IOException {
+
+		BenchmarkImporter importer = new BenchmarkImporter();
+
+		CsvImportPipeline pipeline = new CsvImportPipeline(importer, createSource(), new int[] { 0, 1, 2, 3 });
+		pipeline.setSkipRows(1);
+		pipeline.setParallelism(parallelism);
+		pipeline.run();
+
+		if (pipeline.getErrorCount() > 0 || pipeline.getImportedCount() != rowCount) {
+			throw new IllegalStateException("Import failed: " + pipeline.getErrors());
+		}
+
+		counter.rows += pipeline.getImportedCount();
+
+		return importer.checksum;
+
+	}
+
+	private CsvRowSource createSource() throws IOException {
+		if ("opencsv".equals(source)) {
+			return new OpenCsvRowSource(file, separator, StandardCharsets.UTF_8);
+		} else {
+			return new MappedCsvRowSource(file, separator, StandardCharsets.UTF_8, null);
+		}
+	}
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class RowCounter {
+
+		public long rows;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			rows = 0;
+		}
+
+	}
+
+	// Converts the values like the importers of the application, the imported values are only added to a checksum
+	private static class BenchmarkImporter extends CsvImporter {
+
+		private final CsvDateParser dateParser = new CsvDateParser();
+		private long checksum = 0;
+		private long date;
+		private float hours;
+		private boolean billable;
+		private int descriptionLength;
+
+		@Override
+		public String getPreferencesKey() {
+			return "Benchmark";
+		}
+
+		@Override
+		protected List<CsvField> createFields() {
+
+			List<CsvField> fields = new ArrayList<>();
+
+			fields.add(new CsvField("Date") {
+
+				@Override
+				public Object convert(String value) {
+					return getDate(value, dateParser);
+				}
+
+				@Override
+				public boolean importField(Object value) {
+					date = value != null ? ((Date) value).getTime() : 0L;
+					return true;
+				}
+			});
+
+			fields.add(new CsvField("Hours") {
+
+				@Override
+				public Object convert(String value) {
+					return getFloat(value);
+				}
+
+				@Override
+				public boolean importField(Object value) {
+					hours = value != null ? (Float) value : 0.0F;
+					return true;
+				}
+			});
+
+			fields.add(new CsvField("Billable") {
+
+				@Override
+				public Object convert(String value) {
+					return getBoolean(value);
+				}
+
+				@Override
+				public boolean importField(Object value) {
+					billable = (Boolean) value;
+					return true;
+				}
+			});
+
+			fields.add(new CsvField("Description") {
+
+				@Override
+				public boolean importField(Object value) {
+					descriptionLength = value != null ? value.toString().length() : 0;
+					return true;
+				}
+			});
+
+			return fields;
+
+		}
+
+		@Override
+		public JCheckBox getCheckForExistingItemsCheckBox1() {
+			return null;
+		}
+
+		@Override
+		public JCheckBox getCheckForExistingItemsCheckBox2() {
+			return null;
+		}
+
+		@Override
+		public void startRow() {
+			date = 0L;
+			hours = 0.0F;
+			billable = false;
+			descriptionLength = 0;
+		}
+
+		@Override
+		public boolean finishRow() {
+			checksum += date + Float.floatToIntBits(hours) + (billable ? 1 : 0) + descriptionLength;
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.glasspath.revenue.csv.CsvDateParser;
+import org.glasspath.revenue.csv.CsvImporter;
+import org.glasspath.revenue.csv.CsvNumberParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Conversion of single csv values, the score is the number of converted values per second
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Duser.language=en", "-Duser.country=US" })
+@SuppressWarnings("nls")
+public class CsvValueBenchmark {
+
+	public static final int VALUE_COUNT = 1024;
+
+	@Benchmark
+	@OperationsPerInvocation(VALUE_COUNT)
+	public void getDate(DateValues values, Blackhole blackhole) {
+		for (String value : values.values) {
+			blackhole.consume(CsvImporter.getDate(value));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUE_COUNT)
+	public void getDateWithParser(DateValues values, Blackhole blackhole) {
+		for (String value : values.values) {
+			blackhole.consume(CsvImporter.getDate(value, values.dateParser));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUE_COUNT)
+	public void getFloat(NumberValues values, Blackhole blackhole) {
+		for (String value : values.floatValues) {
+			blackhole.consume(CsvImporter.getFloat(value));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUE_COUNT)
+	public void getFloatPrimitive(NumberValues values, Blackhole blackhole) {
+		for (String value : values.floatValues) {
+			if (CsvImporter.getFloat(value, values.result)) {
+				blackhole.consume(values.result.getFloat());
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUE_COUNT)
+	public void getBoolean(NumberValues values, Blackhole blackhole) {
+		for (String value : values.booleanValues) {
+			blackhole.consume(CsvImporter.getBoolean(value));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class DateValues {
+
+		@Param({ "yyyyMMdd", "E dd MMM yyyy", "E dd-MMM-yyyy", "dd-MM-yyyy", "yyyy-MM-dd", "MM/dd/yyyy", "yyyy/MM/dd", "dd MMM yyyy", "dd MMMM yyyy", "yyyyMMddHHmm", "yyyyMMdd HHmm", "dd-MM-yyyy HH:mm", "yyyy-MM-dd HH:mm", "MM/dd/yyyy HH:mm", "yyyy/MM/dd HH:mm", "dd MMM yyyy HH:mm", "dd MMMM yyyy HH:mm", "yyyyMMddHHmmss", "yyyyMMdd HHmmss", "dd-MM-yyyy HH:mm:ss", "yyyy-MM-dd HH:mm:ss", "MM/dd/yyyy HH:mm:ss", "yyyy/MM/dd HH:mm:ss", "dd MMM yyyy HH:mm:ss", "dd MMMM yyyy HH:mm:ss" })
+		public String dateFormat;
+
+		private String[] values;
+		private CsvDateParser dateParser;
+
+		@Setup
+		public void setup() {
+			values = CsvBenchmarkData.createDateValues(dateFormat, VALUE_COUNT);
+			dateParser = new CsvDateParser();
+		}
+
+	}
+
+	@State(Scope.Thread)
+	public static class NumberValues {
+
+		private String[] floatValues;
+		private String[] booleanValues;
+		private CsvNumberParser.Result result;
+
+		@Setup
+		public void setup() {
+			floatValues = CsvBenchmarkData.createFloatValues(VALUE_COUNT);
+			booleanValues = CsvBenchmarkData.createBooleanValues(VALUE_COUNT);
+			result = new CsvNumberParser.Result();
+		}
+
+	}
+
+}
@@ -22,12 +22,24 @@
  */
 package org.glasspath.revenue;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 
 @JsonInclude(Include.NON_DEFAULT)
 public abstract class AbstractContent {
 
+	public static final String ALL_SECTIONS = "*"; //$NON-NLS-1$
+	public static final char ENTITY_SEPARATOR = '#';
+
+	@JsonIgnore
+	private final Set<String> dirtySections = new LinkedHashSet<>();
+
 	public AbstractContent() {
 
 	}
@@ -36,4 +48,99 @@ public abstract class AbstractContent {
 
 	public abstract void clear();
 
+	// Sections are the parts of the content which can be written to the journal separately (for example
+	// all hours or all invoices), implementations should return a wrapper object, not a bare collection
+	public Object getSection(String section) {
+		return null;
+	}
+
+	public Class<?> getSectionType(String section) {
+		return null;
+	}
+
+	public void setSection(String section, Object value) {
+
+	}
+
+	// Entities are the items of a section (for example one invoice), a changed entity can be written to the journal
+	// without the rest of its section. Implementations return null from getEntityType() for sections without entities
+	public Class<?> getEntityType(String section) {
+		return null;
+	}
+
+	// Returns null if the entity was removed
+	public Object getEntity(String section, String id) {
+		return null;
+	}
+
+	// Entity is null if it was removed
+	public void setEntity(String section, String id, Object entity) {
+
+	}
+
+	// Sections which are stored separately in the snapshot and are loaded on first access (see LazySection),
+	// the property holding a lazy section must have the same name as the section
+	@JsonIgnore
+	public Set<String> getLazySections() {
+		return Collections.emptySet();
+	}
+
+	// Implementations keep the loader and load the section on first access, by default the section is loaded right
+	// away (a lazy section which is ignored here would be missing from the content and from the next content.xml)
+	public void setSectionLoader(String section, SectionLoader loader) throws IOException {
+
+		Class<?> type = getSectionType(section);
+		if (type == null) {
+			throw new UnsupportedOperationException("Lazy section " + section + " is not supported by " + getClass().getName()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		Object value = loader.load(type);
+		setSection(section, value);
+
+		if (value != null && getSection(section) != value) {
+			throw new UnsupportedOperationException("Lazy section " + section + " can't be set on " + getClass().getName()); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+	}
+
+	public void markDirty() {
+		markSectionDirty(ALL_SECTIONS);
+	}
+
+	public void markSectionDirty(String section) {
+		synchronized (dirtySections) {
+			dirtySections.add(section);
+		}
+	}
+
+	public void markEntityDirty(String section, String id) {
+		markSectionDirty(section + ENTITY_SEPARATOR + id);
+	}
+
+	@JsonIgnore
+	public boolean isDirty() {
+		synchronized (dirtySections) {
+			return dirtySections.size() > 0;
+		}
+	}
+
+	public Set<String> takeDirtySections() {
+
+		synchronized (dirtySections) {
+
+			Set<String> sections = new LinkedHashSet<>(dirtySections);
+			dirtySections.clear();
+
+			return sections;
+
+		}
+
+	}
+
+	public void clearDirtySections() {
+		synchronized (dirtySections) {
+			dirtySections.clear();
+		}
+	}
+
 }
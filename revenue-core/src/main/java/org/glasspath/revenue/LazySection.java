@@ -0,0 +1,77 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Holder for a section which is loaded on first access, content implementations use it for large sections
+// which are not needed at startup (like the invoices of previous years) and return the section from getSection()
+public class LazySection<T> {
+
+	private final Class<T> type;
+	private T value = null;
+	private SectionLoader loader = null;
+
+	public LazySection(Class<T> type) {
+		this.type = type;
+	}
+
+	public Class<T> getType() {
+		return type;
+	}
+
+	public synchronized T get() {
+
+		if (loader != null) {
+
+			try {
+				value = loader.load(type);
+			} catch (IOException e) {
+				// The section must not be replaced by an empty one, it would be lost with the next save
+				throw new UncheckedIOException(e);
+			}
+
+			loader = null;
+
+		}
+
+		return value;
+
+	}
+
+	public synchronized void set(T value) {
+		this.value = value;
+		this.loader = null;
+	}
+
+	public synchronized boolean isLoaded() {
+		return loader == null;
+	}
+
+	public synchronized void setLoader(SectionLoader loader) {
+		this.value = null;
+		this.loader = loader;
+	}
+
+}
@@ -0,0 +1,355 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.glasspath.revenue.AbstractContent;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+// Write-ahead log for content.xml, every record contains the complete state of one section or of one entity
+// of a section (see AbstractContent.getEntityType()), a removed entity is recorded as a removal. The header
+// refers to the checkpoint (content.xml) the log was written on top of, a log which doesn't match the
+// checkpoint is stale. Records are protected by a CRC and a sequence number, replaying stops at the first
+// record that is incomplete or damaged (a crash while appending) and the log is truncated at that point.
+public class ContentJournal implements Closeable {
+
+	public static final String EXTENSION = "journal"; //$NON-NLS-1$
+	public static final int MAGIC = 0x47504A32;
+	public static final int HEADER_SIZE = 4 + 8 + 8;
+	public static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 2;
+	public static final int BUFFER_SIZE = 64 * 1024;
+	public static final char REMOVAL_SEPARATOR = '!';
+
+	private final File file;
+	private final File baseFile;
+	private final XmlMapper xmlMapper;
+	private FileChannel channel = null;
+	private int recordCount = 0;
+	private long sequence = 0;
+	private long syncedSequence = 0;
+	private boolean replayed = false;
+
+	public ContentJournal(File baseFile, XmlMapper xmlMapper) {
+		this.file = getJournalFile(baseFile);
+		this.baseFile = baseFile;
+		this.xmlMapper = xmlMapper;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	public long getSize() {
+		return file.length();
+	}
+
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	public synchronized boolean isSynced() {
+		return syncedSequence == sequence;
+	}
+
+	public synchronized long append(String section, Object value) throws IOException {
+		return appendRecord(section, section, value);
+	}
+
+	// Entity is null if it was removed
+	public synchronized long appendEntity(String section, String id, Object entity) throws IOException {
+		if (entity != null) {
+			return appendRecord(section + AbstractContent.ENTITY_SEPARATOR + id, section, entity);
+		} else {
+			return appendRecord(section + REMOVAL_SEPARATOR + id, section, id);
+		}
+	}
+
+	private long appendRecord(String recordName, String section, Object value) throws IOException {
+
+		FileChannel channel = getChannel();
+
+		long recordStart = channel.size();
+		channel.position(recordStart);
+
+		byte[] name = recordName.getBytes(StandardCharsets.UTF_8);
+
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + name.length);
+		header.putInt(0); // Length and CRC are written when the record is complete
+		header.putInt(0);
+		header.putLong(sequence + 1);
+		header.putShort((short) name.length);
+		header.put(name);
+		header.flip();
+
+		try {
+
+			writeFully(channel, header);
+
+			long payloadStart = channel.position();
+
+			CRC32 crc = new CRC32();
+			crc.update(name, 0, name.length);
+
+			// The value is streamed directly to the journal, nothing is buffered except for the output buffer
+			OutputStream out = new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), crc);
+			JsonGenerator generator = xmlMapper.getFactory().createGenerator(out);
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			xmlMapper.writer().withRootName(section).writeValue(generator, value);
+			out.flush();
+
+			ByteBuffer lengthAndCrc = ByteBuffer.allocate(8);
+			lengthAndCrc.putInt((int) (channel.position() - payloadStart));
+			lengthAndCrc.putInt((int) crc.getValue());
+			lengthAndCrc.flip();
+			while (lengthAndCrc.hasRemaining()) {
+				channel.write(lengthAndCrc, recordStart + lengthAndCrc.position());
+			}
+
+		} catch (IOException | RuntimeException e) {
+
+			// Replaying stops at an incomplete record, records appended after it would be lost
+			channel.truncate(recordStart);
+			channel.position(recordStart);
+
+			throw e;
+
+		}
+
+		recordCount++;
+		sequence++;
+
+		return sequence;
+
+	}
+
+	// Appends are not forced to disk individually, the owner of the journal calls sync() to make a batch
+	// of appends durable with a single fsync
+	public synchronized void sync() throws IOException {
+		if (channel != null && syncedSequence != sequence) {
+			channel.force(false);
+			syncedSequence = sequence;
+		}
+	}
+
+	public synchronized int replay(AbstractContent content) throws IOException {
+
+		close();
+		recordCount = 0;
+		sequence = 0;
+		syncedSequence = 0;
+		replayed = true;
+
+		if (!file.exists()) {
+			return 0;
+		}
+
+		long fileLength = file.length();
+		long validLength = 0;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+
+			if (in.readInt() == MAGIC && in.readLong() == baseFile.length() && in.readLong() == baseFile.lastModified()) {
+
+				validLength = HEADER_SIZE;
+
+				CRC32 crc = new CRC32();
+
+				while (true) {
+
+					int length = in.readInt();
+					int checksum = in.readInt();
+					long recordSequence = in.readLong();
+					// A damaged length could be anything, a record can't be longer than the rest of the file
+					if (length <= 0 || length > fileLength - validLength - RECORD_HEADER_SIZE || recordSequence != sequence + 1) {
+						break;
+					}
+
+					byte[] name = new byte[in.readUnsignedShort()];
+					in.readFully(name);
+
+					byte[] payload = new byte[length];
+					in.readFully(payload);
+
+					crc.reset();
+					crc.update(name, 0, name.length);
+					crc.update(payload, 0, payload.length);
+					if ((int) crc.getValue() != checksum) {
+						break;
+					}
+
+					replayRecord(content, new String(name, StandardCharsets.UTF_8), payload);
+
+					validLength += RECORD_HEADER_SIZE + name.length + length;
+					recordCount++;
+					sequence = recordSequence;
+
+				}
+
+			}
+
+		} catch (EOFException e) {
+			// Log ends with a record that was not completely written
+		}
+
+		syncedSequence = sequence;
+
+		if (validLength == 0) {
+			clear();
+		} else if (fileLength > validLength) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(validLength);
+				channel.force(false);
+			}
+		}
+
+		return recordCount;
+
+	}
+
+	private void replayRecord(AbstractContent content, String recordName, byte[] payload) throws IOException {
+
+		int index = recordName.indexOf(REMOVAL_SEPARATOR);
+		if (index > 0) {
+			content.setEntity(recordName.substring(0, index), recordName.substring(index + 1), null);
+			return;
+		}
+
+		index = recordName.indexOf(AbstractContent.ENTITY_SEPARATOR);
+		if (index > 0) {
+
+			String section = recordName.substring(0, index);
+
+			Class<?> type = content.getEntityType(section);
+			if (type != null) {
+				content.setEntity(section, recordName.substring(index + 1), xmlMapper.readValue(payload, type));
+			}
+
+		} else {
+
+			Class<?> type = content.getSectionType(recordName);
+			if (type != null) {
+				content.setSection(recordName, xmlMapper.readValue(payload, type));
+			}
+
+		}
+
+	}
+
+	public synchronized void clear() throws IOException {
+
+		close();
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Journal could not be deleted: " + file.getAbsolutePath()); //$NON-NLS-1$
+		}
+
+		recordCount = 0;
+		sequence = 0;
+		syncedSequence = 0;
+		replayed = true;
+
+	}
+
+	private FileChannel getChannel() throws IOException {
+
+		if (channel == null) {
+
+			if (!replayed && file.length() > HEADER_SIZE) {
+				throw new IOException("Journal must be replayed before appending: " + file.getAbsolutePath()); //$NON-NLS-1$
+			}
+
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+			if (channel.size() < HEADER_SIZE) {
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC);
+				header.putLong(baseFile.length());
+				header.putLong(baseFile.lastModified());
+				header.flip();
+
+				channel.truncate(0);
+				writeFully(channel, header);
+
+			}
+
+		}
+
+		return channel;
+
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			try {
+				sync();
+				channel.close();
+			} finally {
+				channel = null;
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	public static File getJournalFile(File baseFile) {
+
+		String name = baseFile.getName();
+
+		int index = name.lastIndexOf('.');
+		if (index > 0) {
+			name = name.substring(0, index);
+		}
+
+		return new File(baseFile.getParentFile(), name + "." + EXTENSION); //$NON-NLS-1$
+
+	}
+
+}
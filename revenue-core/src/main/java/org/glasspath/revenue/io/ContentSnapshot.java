@@ -0,0 +1,477 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.glasspath.revenue.AbstractContent;
+import org.glasspath.revenue.SectionLoader;
+
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+// Binary (Smile) copy of content.xml which is much faster to load than the XML, content.xml remains the
+// real data. The header contains the length, modification time and the CRC of a few samples of the
+// content.xml the snapshot was written for, a snapshot which doesn't match content.xml (or is damaged) is ignored.
+// Lazy sections of the content are stored after the rest of the content, every section with its own
+// length and CRC. When loading only their position is read, the section is parsed on first access.
+// The Smile mapper is configured like the XML mapper (modules have to be passed in explicitly), a snapshot is
+// only written if reading it back gives the same content (otherwise loading the snapshot would silently lose
+// data which is in content.xml).
+public class ContentSnapshot {
+
+	public static final String EXTENSION = "snapshot"; //$NON-NLS-1$
+	public static final int MAGIC = 0x47505332;
+	public static final int HEADER_SIZE = 4 + 8 + 8 + 8 + 4;
+	public static final int BUFFER_SIZE = 256 * 1024;
+	public static final int SAMPLE_COUNT = 16;
+	public static final int SAMPLE_SIZE = 4 * 1024;
+
+	private static final Random RANDOM = new Random();
+
+	private final File file;
+	private final File baseFile;
+	private final XmlMapper xmlMapper;
+	private final List<? extends Module> modules;
+	private final SmileMapper smileMapper;
+	private SmileMapper baseMapper = null;
+	private Set<String> baseMapperSections = null;
+
+	public ContentSnapshot(File baseFile, XmlMapper xmlMapper) {
+		this(baseFile, xmlMapper, Collections.<Module> emptyList());
+	}
+
+	// Modules are the (de)serializer modules which are registered on the XML mapper (not the XML module itself)
+	public ContentSnapshot(File baseFile, XmlMapper xmlMapper, List<? extends Module> modules) {
+		this.file = getSnapshotFile(baseFile);
+		this.baseFile = baseFile;
+		this.xmlMapper = xmlMapper;
+		this.modules = modules;
+		this.smileMapper = createSmileMapper(xmlMapper, modules);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void write(AbstractContent content) throws IOException {
+
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp"); //$NON-NLS-1$
+
+		try {
+
+			Set<String> sections = content.getLazySections();
+
+			CRC32 crc = new CRC32();
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE))) {
+
+				out.writeInt(MAGIC);
+				out.writeLong(RANDOM.nextLong()); // Identifies this snapshot for the section loaders
+				out.writeLong(baseFile.length());
+				out.writeLong(baseFile.lastModified());
+				out.writeInt(computeSampleCrc(baseFile));
+
+				SmileMapper baseMapper = getBaseMapper(sections);
+				byte[] bytes = baseMapper.writeValueAsBytes(content);
+				checkRoundTrip(content, baseMapper.readValue(bytes, content.getClass()), sections);
+				writeBlock(out, crc, bytes);
+
+				out.writeInt(sections.size());
+
+				for (String section : sections) {
+
+					byte[] name = section.getBytes(StandardCharsets.UTF_8);
+					out.writeShort(name.length);
+					out.write(name);
+
+					// The base mapper leaves the section out, so it would be lost if the content doesn't return it
+					Object value = content.getSection(section);
+					if (value == null) {
+						throw new IOException("Lazy section " + section + " is not returned by " + content.getClass().getName() + ", snapshot is not written"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+					}
+
+					bytes = smileMapper.writeValueAsBytes(value);
+					checkRoundTrip(value, smileMapper.readValue(bytes, content.getSectionType(section)), null);
+					writeBlock(out, crc, bytes);
+
+				}
+
+			}
+
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		} catch (IOException e) {
+			tempFile.delete();
+			delete();
+			throw e;
+		}
+
+	}
+
+	private void writeBlock(DataOutputStream out, CRC32 crc, byte[] bytes) throws IOException {
+
+		crc.reset();
+		crc.update(bytes, 0, bytes.length);
+
+		out.writeInt(bytes.length);
+		out.writeInt((int) crc.getValue());
+		out.write(bytes);
+
+	}
+
+	// Returns null if there is no snapshot for the current content.xml
+	public <T extends AbstractContent> T read(Class<T> contentClass) {
+
+		if (!file.isFile()) {
+			return null;
+		}
+
+		long fileLength = file.length();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+
+			long snapshotId = in.readLong();
+			long baseFileLength = in.readLong();
+			long baseFileLastModified = in.readLong();
+			if (baseFileLength != baseFile.length() || baseFileLastModified != baseFile.lastModified()) {
+				return null;
+			}
+
+			// Length and modification time can be the same after an external edit, the samples are very unlikely to be
+			if (in.readInt() != computeSampleCrc(baseFile)) {
+				return null;
+			}
+
+			int length = in.readInt();
+			int checksum = in.readInt();
+
+			long position = HEADER_SIZE + 8;
+
+			// Lengths are checked before anything is allocated, a damaged snapshot must not cause an OutOfMemoryError
+			if (length < 0 || length > fileLength - position) {
+				return null;
+			}
+
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, payload.length);
+			if ((int) crc.getValue() != checksum) {
+				return null;
+			}
+
+			T content = smileMapper.readValue(payload, contentClass);
+
+			position += length;
+
+			int sectionCount = in.readInt();
+			position += 4;
+
+			for (int i = 0; i < sectionCount; i++) {
+
+				byte[] name = new byte[in.readUnsignedShort()];
+				in.readFully(name);
+
+				int sectionLength = in.readInt();
+				int sectionChecksum = in.readInt();
+				position += 2 + name.length + 8;
+
+				if (sectionLength < 0 || sectionLength > fileLength - position) {
+					return null;
+				}
+
+				String section = new String(name, StandardCharsets.UTF_8);
+				content.setSectionLoader(section, new SnapshotSectionLoader<>(contentClass, section, snapshotId, baseFileLength, baseFileLastModified, position, sectionLength, sectionChecksum));
+
+				skipFully(in, sectionLength);
+				position += sectionLength;
+
+			}
+
+			return content;
+
+		} catch (Exception e) {
+			// Snapshot is only a cache, content.xml will be loaded instead
+			return null;
+		}
+
+	}
+
+	public void delete() {
+		if (file.exists()) {
+			file.delete();
+		}
+	}
+
+	private SmileMapper getBaseMapper(final Set<String> sections) {
+
+		if (sections.size() == 0) {
+			return smileMapper;
+		}
+
+		if (baseMapper == null || !sections.equals(baseMapperSections)) {
+
+			baseMapperSections = new HashSet<>(sections);
+			baseMapper = createSmileMapper(xmlMapper, modules);
+
+			// Lazy sections are left out, they are written separately
+			SimpleModule module = new SimpleModule();
+			module.setSerializerModifier(new BeanSerializerModifier() {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public List<BeanPropertyWriter> changeProperties(SerializationConfig config, BeanDescription beanDesc, List<BeanPropertyWriter> beanProperties) {
+
+					if (AbstractContent.class.isAssignableFrom(beanDesc.getBeanClass())) {
+						Iterator<BeanPropertyWriter> iterator = beanProperties.iterator();
+						while (iterator.hasNext()) {
+							if (baseMapperSections.contains(iterator.next().getName())) {
+								iterator.remove();
+							}
+						}
+					}
+
+					return beanProperties;
+
+				}
+			});
+			baseMapper.registerModule(module);
+
+		}
+
+		return baseMapper;
+
+	}
+
+	// Compares the values as the XML mapper sees them, properties in skippedProperties are not compared
+	private void checkRoundTrip(Object value, Object readValue, Set<String> skippedProperties) throws IOException {
+
+		JsonNode expected = xmlMapper.valueToTree(value);
+		JsonNode actual = xmlMapper.valueToTree(readValue);
+
+		if (skippedProperties != null && expected instanceof ObjectNode && actual instanceof ObjectNode) {
+			((ObjectNode) expected).remove(skippedProperties);
+			((ObjectNode) actual).remove(skippedProperties);
+		}
+
+		if (!expected.equals(actual)) {
+			throw new IOException("Snapshot of " + value.getClass().getName() + " doesn't match the content, snapshot is not written"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+	}
+
+	// Copies the configuration of the XML mapper, mix-ins are not copied (the round trip check fails if they are used)
+	private static SmileMapper createSmileMapper(XmlMapper xmlMapper, List<? extends Module> modules) {
+
+		SerializationConfig serializationConfig = xmlMapper.getSerializationConfig();
+		DeserializationConfig deserializationConfig = xmlMapper.getDeserializationConfig();
+
+		SmileMapper.Builder builder = SmileMapper.builder();
+
+		for (MapperFeature feature : MapperFeature.values()) {
+			builder.configure(feature, xmlMapper.isEnabled(feature));
+		}
+		for (SerializationFeature feature : SerializationFeature.values()) {
+			builder.configure(feature, xmlMapper.isEnabled(feature));
+		}
+		for (DeserializationFeature feature : DeserializationFeature.values()) {
+			builder.configure(feature, xmlMapper.isEnabled(feature));
+		}
+
+		builder.visibility(serializationConfig.getDefaultVisibilityChecker());
+		builder.defaultPropertyInclusion(serializationConfig.getDefaultPropertyInclusion());
+		builder.propertyNamingStrategy(serializationConfig.getPropertyNamingStrategy());
+		builder.defaultDateFormat(serializationConfig.getDateFormat());
+		builder.defaultTimeZone(serializationConfig.getTimeZone());
+		builder.defaultLocale(serializationConfig.getLocale());
+		builder.subtypeResolver(xmlMapper.getSubtypeResolver());
+		builder.injectableValues(xmlMapper.getInjectableValues());
+		builder.addModules(modules);
+
+		// Snapshot is only read back by this version of the application
+		builder.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+		SmileMapper smileMapper = builder.build();
+		smileMapper.setAnnotationIntrospectors(serializationConfig.getAnnotationIntrospector(), deserializationConfig.getAnnotationIntrospector());
+
+		return smileMapper;
+
+	}
+
+	private static void skipFully(DataInputStream in, int length) throws IOException {
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			length -= skipped;
+		}
+	}
+
+	// CRC of a few blocks spread over the file (the whole file if it's small), loading must not read all of content.xml
+	public static int computeSampleCrc(File file) throws IOException {
+
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[SAMPLE_SIZE];
+
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) { //$NON-NLS-1$
+
+			long length = in.length();
+			if (length <= (long) SAMPLE_COUNT * SAMPLE_SIZE) {
+
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					crc.update(buffer, 0, n);
+				}
+
+			} else {
+
+				for (int i = 0; i < SAMPLE_COUNT; i++) {
+					in.seek(i * ((length - SAMPLE_SIZE) / (SAMPLE_COUNT - 1)));
+					in.readFully(buffer);
+					crc.update(buffer, 0, buffer.length);
+				}
+
+			}
+
+		}
+
+		return (int) crc.getValue();
+
+	}
+
+	public static File getSnapshotFile(File baseFile) {
+
+		String name = baseFile.getName();
+
+		int index = name.lastIndexOf('.');
+		if (index > 0) {
+			name = name.substring(0, index);
+		}
+
+		return new File(baseFile.getParentFile(), name + "." + EXTENSION); //$NON-NLS-1$
+
+	}
+
+	private class SnapshotSectionLoader<T extends AbstractContent> implements SectionLoader {
+
+		private final Class<T> contentClass;
+		private final String section;
+		private final long snapshotId;
+		private final long baseFileLength;
+		private final long baseFileLastModified;
+		private final long position;
+		private final int length;
+		private final int checksum;
+
+		private SnapshotSectionLoader(Class<T> contentClass, String section, long snapshotId, long baseFileLength, long baseFileLastModified, long position, int length, int checksum) {
+			this.contentClass = contentClass;
+			this.section = section;
+			this.snapshotId = snapshotId;
+			this.baseFileLength = baseFileLength;
+			this.baseFileLastModified = baseFileLastModified;
+			this.position = position;
+			this.length = length;
+			this.checksum = checksum;
+		}
+
+		@Override
+		public <S> S load(Class<S> type) throws IOException {
+
+			try (RandomAccessFile in = new RandomAccessFile(file, "r")) { //$NON-NLS-1$
+
+				in.seek(4);
+				if (in.readLong() == snapshotId && length >= 0 && length <= in.length() - position) {
+
+					byte[] payload = new byte[length];
+
+					in.seek(position);
+					in.readFully(payload);
+
+					CRC32 crc = new CRC32();
+					crc.update(payload, 0, payload.length);
+					if ((int) crc.getValue() == checksum) {
+						return smileMapper.readValue(payload, type);
+					}
+
+				}
+
+			} catch (IOException e) {
+				// Snapshot was replaced or damaged, the section is read from content.xml instead
+			}
+
+			return loadFromBaseFile(type);
+
+		}
+
+		private <S> S loadFromBaseFile(Class<S> type) throws IOException {
+
+			if (baseFile.length() != baseFileLength || baseFile.lastModified() != baseFileLastModified) {
+				throw new IOException("Section " + section + " could not be loaded, " + baseFile.getName() + " was changed"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+
+			return type.cast(xmlMapper.readValue(baseFile, contentClass).getSection(section));
+
+		}
+
+	}
+
+}
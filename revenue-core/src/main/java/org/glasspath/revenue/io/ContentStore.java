@@ -0,0 +1,369 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.glasspath.common.xml.XmlUtils;
+import org.glasspath.revenue.AbstractContent;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+public class ContentStore<T extends AbstractContent> {
+
+	public static final int DEFAULT_MAX_JOURNAL_RECORDS = 500;
+	public static final long DEFAULT_COMPACT_INTERVAL = 10 * 60 * 1000L;
+	public static final long DEFAULT_SYNC_DELAY = 1000L;
+	public static final int BUFFER_SIZE = 256 * 1024;
+
+	private final File contentXmlFile;
+	private final Class<T> contentClass;
+	private final XmlMapper xmlMapper;
+	private final ContentJournal journal;
+	private final ContentSnapshot snapshot;
+	private boolean snapshotEnabled = true;
+	private int maxJournalRecords = DEFAULT_MAX_JOURNAL_RECORDS;
+	private long compactInterval = DEFAULT_COMPACT_INTERVAL;
+	private long syncDelay = DEFAULT_SYNC_DELAY;
+	private long lastCompacted = System.currentTimeMillis();
+	private CheckpointListener checkpointListener = null;
+	private ScheduledExecutorService syncExecutor = null;
+	private boolean syncScheduled = false;
+	private IOException syncException = null;
+
+	public ContentStore(File contentXmlFile, Class<T> contentClass) {
+		this.contentXmlFile = contentXmlFile;
+		this.contentClass = contentClass;
+		this.xmlMapper = XmlUtils.createXmlMapper();
+		this.journal = new ContentJournal(contentXmlFile, xmlMapper);
+		this.snapshot = new ContentSnapshot(contentXmlFile, xmlMapper);
+	}
+
+	public File getContentXmlFile() {
+		return contentXmlFile;
+	}
+
+	public ContentJournal getJournal() {
+		return journal;
+	}
+
+	public ContentSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public boolean isSnapshotEnabled() {
+		return snapshotEnabled;
+	}
+
+	public void setSnapshotEnabled(boolean snapshotEnabled) {
+		this.snapshotEnabled = snapshotEnabled;
+		if (!snapshotEnabled) {
+			snapshot.delete();
+		}
+	}
+
+	public int getMaxJournalRecords() {
+		return maxJournalRecords;
+	}
+
+	public void setMaxJournalRecords(int maxJournalRecords) {
+		this.maxJournalRecords = maxJournalRecords;
+	}
+
+	public long getCompactInterval() {
+		return compactInterval;
+	}
+
+	public void setCompactInterval(long compactInterval) {
+		this.compactInterval = compactInterval;
+	}
+
+	public long getSyncDelay() {
+		return syncDelay;
+	}
+
+	public void setSyncDelay(long syncDelay) {
+		this.syncDelay = syncDelay;
+	}
+
+	public CheckpointListener getCheckpointListener() {
+		return checkpointListener;
+	}
+
+	public void setCheckpointListener(CheckpointListener checkpointListener) {
+		this.checkpointListener = checkpointListener;
+	}
+
+	public synchronized T load() throws IOException {
+
+		T content = snapshotEnabled ? snapshot.read(contentClass) : null;
+		if (content == null) {
+			content = xmlMapper.readValue(contentXmlFile, contentClass);
+		}
+
+		journal.replay(content);
+		content.clearDirtySections();
+
+		lastCompacted = System.currentTimeMillis();
+
+		return content;
+
+	}
+
+	public synchronized void save(T content) throws IOException {
+
+		throwSyncException();
+
+		Set<String> sections = content.takeDirtySections();
+		if (sections.size() == 0) {
+			return;
+		}
+
+		try {
+
+			if (sections.contains(AbstractContent.ALL_SECTIONS) || isCompactionNeeded()) {
+				writeContentXml(content);
+			} else {
+
+				for (String key : sections) {
+					if (!appendToJournal(content, key)) {
+
+						// Section or entity is not supported by the content, only a full write can store the change
+						writeContentXml(content);
+
+						return;
+
+					}
+				}
+
+				journal.sync();
+
+			}
+
+		} catch (IOException e) {
+
+			for (String section : sections) {
+				content.markSectionDirty(section);
+			}
+
+			throw e;
+
+		}
+
+	}
+
+	// Records a single mutation in the log, the record is forced to disk together with all other records
+	// appended within the sync delay, this gives recovery points which are finer than the auto-save interval
+	public synchronized void record(T content, String section) throws IOException {
+
+		throwSyncException();
+
+		Object value = content.getSection(section);
+		if (value == null) {
+			content.markSectionDirty(section);
+			return;
+		}
+
+		journal.append(section, value);
+
+		scheduleSync();
+
+	}
+
+	// Dirty keys are sections or entities (section#id), a changed entity is journaled without the rest of its section
+	private boolean appendToJournal(T content, String key) throws IOException {
+
+		int index = key.indexOf(AbstractContent.ENTITY_SEPARATOR);
+		if (index > 0) {
+
+			String section = key.substring(0, index);
+			if (content.getEntityType(section) == null) {
+				return false;
+			}
+
+			journal.appendEntity(section, key.substring(index + 1), content.getEntity(section, key.substring(index + 1)));
+
+		} else {
+
+			Object value = content.getSection(key);
+			if (value == null) {
+				return false;
+			}
+
+			journal.append(key, value);
+
+		}
+
+		return true;
+
+	}
+
+	// Same as record(), but only the entity is written to the log, not the complete section
+	public synchronized void recordEntity(T content, String section, String id) throws IOException {
+
+		throwSyncException();
+
+		if (content.getEntityType(section) == null) {
+			record(content, section);
+			return;
+		}
+
+		journal.appendEntity(section, id, content.getEntity(section, id));
+
+		scheduleSync();
+
+	}
+
+	public synchronized void compact(T content) throws IOException {
+
+		content.clearDirtySections();
+
+		writeContentXml(content);
+
+	}
+
+	protected boolean isCompactionNeeded() {
+		return journal.getRecordCount() >= maxJournalRecords || journal.getSize() > contentXmlFile.length() || System.currentTimeMillis() - lastCompacted > compactInterval;
+	}
+
+	private void writeContentXml(T content) throws IOException {
+
+		File tempFile = new File(contentXmlFile.getParentFile(), contentXmlFile.getName() + ".tmp"); //$NON-NLS-1$
+
+		try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+
+			OutputStream out = new BufferedOutputStream(fileOut, BUFFER_SIZE);
+			xmlMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET).writeValue(out, content);
+			out.flush();
+
+			// The checkpoint must be on disk before the log it replaces is deleted
+			fileOut.getFD().sync();
+
+		}
+
+		Files.move(tempFile.toPath(), contentXmlFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// The journal header refers to the previous content.xml, so it would be ignored anyway
+		journal.clear();
+
+		if (snapshotEnabled) {
+			try {
+				snapshot.write(content);
+			} catch (IOException e) {
+				// Not a problem, the snapshot is only used to speed up loading
+			}
+		}
+
+		lastCompacted = System.currentTimeMillis();
+
+		if (checkpointListener != null) {
+			checkpointListener.checkpointWritten(contentXmlFile);
+		}
+
+	}
+
+	private void scheduleSync() {
+
+		if (syncScheduled) {
+			return;
+		}
+
+		if (syncExecutor == null) {
+			syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+
+					Thread thread = new Thread(runnable, "Content journal sync"); //$NON-NLS-1$
+					thread.setDaemon(true);
+
+					return thread;
+
+				}
+			});
+		}
+
+		syncScheduled = true;
+
+		syncExecutor.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				sync();
+			}
+		}, syncDelay, TimeUnit.MILLISECONDS);
+
+	}
+
+	public synchronized void sync() {
+
+		syncScheduled = false;
+
+		try {
+			journal.sync();
+		} catch (IOException e) {
+			syncException = e; // Reported by the next call to save() or record()
+		}
+
+	}
+
+	private void throwSyncException() throws IOException {
+		if (syncException != null) {
+			IOException e = syncException;
+			syncException = null;
+			throw e;
+		}
+	}
+
+	public synchronized void close() throws IOException {
+
+		if (syncExecutor != null) {
+			syncExecutor.shutdown();
+			syncExecutor = null;
+		}
+
+		syncScheduled = false;
+
+		journal.close();
+
+	}
+
+	public static interface CheckpointListener {
+
+		public void checkpointWritten(File contentXmlFile);
+
+	}
+
+}
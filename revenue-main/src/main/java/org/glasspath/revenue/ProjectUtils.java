@@ -22,18 +22,36 @@
  */
 package org.glasspath.revenue;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.glasspath.common.Common;
 import org.glasspath.common.os.OsUtils;
-import org.glasspath.common.xml.XmlUtils;
+import org.glasspath.revenue.backup.BackupCatalog;
+import org.glasspath.revenue.backup.BackupCatalog.Entry;
+import org.glasspath.revenue.backup.BackupService;
+import org.glasspath.revenue.backup.ProjectBackupStore;
+import org.glasspath.revenue.backup.SyncBackupWriter;
+import org.glasspath.revenue.io.ContentStore;
+import org.glasspath.revenue.io.ContentStore.CheckpointListener;
 
 import com.fasterxml.jackson.annotation.JsonRootName;
 
@@ -75,8 +93,8 @@ public class ProjectUtils {
 			SYNC_BACKUP_DIR
 	};
 
-	public static final DateFormat PROJECT_BACKUP_FILE_DATE_FORMAT = new SimpleDateFormat("yyyyMMdd-HHmmss");
-	public static final DateFormat SYNC_BACKUP_FILE_DATE_FORMAT = new SimpleDateFormat("yyyyMMdd-HHmmss");
+	public static final String SYNC_BACKUP_EXTENSION = "json.gz";
+	public static final int SYNC_BACKUP_BUFFER_SIZE = 64 * 1024;
 
 	private ProjectUtils() {
 
@@ -155,7 +173,7 @@ public class ProjectUtils {
 						// TODO: return null?
 					}
 
-					XmlUtils.createXmlMapper().writeValue(new File(projectDir, CONTENT_XML), new DefaultContent());
+					new ContentStore<DefaultContent>(new File(projectDir, CONTENT_XML), DefaultContent.class).compact(new DefaultContent());
 
 				} catch (Exception e) {
 					// TODO: Throw exception
@@ -218,54 +236,71 @@ public class ProjectUtils {
 
 	}
 
-	public static void createProjectBackup(String contentXmlPath, int maxProjectBackups) {
+	public static ProjectBackupStore getProjectBackupStore(String contentXmlPath) {
 
 		File projectDir = getProjectDir(contentXmlPath);
 		if (projectDir != null) {
 
 			File projectBackupDir = new File(projectDir, PROJECT_BACKUP_DIR);
 			if (projectBackupDir.isDirectory()) {
+				return ProjectBackupStore.get(projectBackupDir);
+			}
 
-				OsUtils.copyFile(new File(contentXmlPath), new File(projectBackupDir, PROJECT_BACKUP_FILE_DATE_FORMAT.format(new Date()) + ".xml"));
+		}
 
-				try {
+		return null;
 
-					File[] projectBackups = projectBackupDir.listFiles();
-					if (projectBackups != null && projectBackups.length > 0 && projectBackups.length > maxProjectBackups) {
-
-						Arrays.sort(projectBackups, new Comparator<File>() {
-
-							@Override
-							public int compare(File f1, File f2) {
-								try {
-									return PROJECT_BACKUP_FILE_DATE_FORMAT.parse(f2.getName()).compareTo(PROJECT_BACKUP_FILE_DATE_FORMAT.parse(f1.getName()));
-								} catch (ParseException e) {
-									return 0;
-								}
-							}
-						});
-
-						for (int i = maxProjectBackups; i < projectBackups.length; i++) {
-							try {
-								projectBackups[i].delete();
-							} catch (Exception e) {
-								Common.LOGGER.error("Exception while deleting project backup file", e);
-							}
-						}
+	}
 
-					}
+	// The backup is created in the background by BackupService
+	public static void createProjectBackup(String contentXmlPath, int maxProjectBackups) {
+		BackupService.getInstance().createProjectBackup(contentXmlPath, maxProjectBackups);
+	}
 
-				} catch (Exception e) {
-					Common.LOGGER.error("Exception while cleaning project backup dir", e);
-				}
+	// Creates the backup on the calling thread, exceptions are thrown to the caller (used by BackupService)
+	public static void writeProjectBackup(String contentXmlPath, int maxProjectBackups) throws IOException {
 
+		ProjectBackupStore projectBackupStore = getProjectBackupStore(contentXmlPath);
+		if (projectBackupStore != null) {
+
+			projectBackupStore.createSnapshot(new File(contentXmlPath));
+
+			try {
+				projectBackupStore.prune(maxProjectBackups);
+			} catch (Exception e) {
+				Common.LOGGER.error("Exception while cleaning project backup dir", e);
 			}
 
 		}
 
 	}
 
+	// Backups are created when the content store writes a checkpoint instead of on every save, between
+	// checkpoints the changes are kept in the content journal, the backup itself is created in the background
+	public static CheckpointListener createProjectBackupListener(final int maxProjectBackups) {
+
+		return new CheckpointListener() {
+
+			@Override
+			public void checkpointWritten(File contentXmlFile) {
+				BackupService.getInstance().createProjectBackup(contentXmlFile.getAbsolutePath(), maxProjectBackups);
+			}
+		};
+
+	}
+
+	// The backup is created in the background by BackupService
 	public static void createSyncBackup(String contentXmlPath, String syncDataAsJson, int maxSyncBackups) {
+		BackupService.getInstance().createSyncBackup(contentXmlPath, syncDataAsJson, maxSyncBackups);
+	}
+
+	// The writer is called on the backup thread, so the data it writes must not be changed after this call
+	public static void createSyncBackup(String contentXmlPath, SyncBackupWriter syncBackupWriter, int maxSyncBackups) {
+		BackupService.getInstance().createSyncBackup(contentXmlPath, syncBackupWriter, maxSyncBackups);
+	}
+
+	// Creates the backup on the calling thread, exceptions are thrown to the caller (used by BackupService)
+	public static void writeSyncBackup(String contentXmlPath, SyncBackupWriter syncBackupWriter, int maxSyncBackups) throws IOException {
 
 		File projectDir = getProjectDir(contentXmlPath);
 		if (projectDir != null) {
@@ -273,39 +308,35 @@ public class ProjectUtils {
 			File syncBackupDir = new File(projectDir, SYNC_BACKUP_DIR);
 			if (syncBackupDir.isDirectory()) {
 
-				File syncBackupFile = new File(syncBackupDir, SYNC_BACKUP_FILE_DATE_FORMAT.format(new Date()) + ".json");
+				BackupCatalog catalog = BackupCatalog.get(syncBackupDir);
 
-				try (PrintWriter printWriter = new PrintWriter(syncBackupFile)) {
-					printWriter.print(syncDataAsJson);
-				} catch (Exception e) {
-					Common.LOGGER.error("Exception while creating sync backup", e);
+				File syncBackupFile = new File(syncBackupDir, BackupCatalog.formatTime(System.currentTimeMillis()) + "." + SYNC_BACKUP_EXTENSION);
+				File tempFile = new File(syncBackupDir, syncBackupFile.getName() + "." + BackupCatalog.TEMP_FILE_EXTENSION);
+
+				try {
+
+					// Sync data is streamed (gzip compressed) to the file, only the buffers are kept in memory
+					try (Writer writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tempFile), SYNC_BACKUP_BUFFER_SIZE), StandardCharsets.UTF_8), SYNC_BACKUP_BUFFER_SIZE)) {
+						syncBackupWriter.write(writer);
+					}
+
+					Files.move(tempFile.toPath(), syncBackupFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+					catalog.add(syncBackupFile.getName());
+
+				} catch (IOException | RuntimeException e) {
+					tempFile.delete();
+					throw e;
 				}
 
 				try {
 
-					File[] syncBackups = syncBackupDir.listFiles();
-					if (syncBackups != null && syncBackups.length > 0 && syncBackups.length > maxSyncBackups) {
-
-						Arrays.sort(syncBackups, new Comparator<File>() {
-
-							@Override
-							public int compare(File f1, File f2) {
-								try {
-									return SYNC_BACKUP_FILE_DATE_FORMAT.parse(f2.getName()).compareTo(SYNC_BACKUP_FILE_DATE_FORMAT.parse(f1.getName()));
-								} catch (ParseException e) {
-									return 0;
-								}
-							}
-						});
-
-						for (int i = maxSyncBackups; i < syncBackups.length; i++) {
-							try {
-								syncBackups[i].delete();
-							} catch (Exception e) {
-								Common.LOGGER.error("Exception while deleting sync backup file", e);
-							}
+					for (Entry entry : catalog.removeOldest(maxSyncBackups)) {
+						try {
+							new File(syncBackupDir, entry.getFileName()).delete();
+						} catch (Exception e) {
+							Common.LOGGER.error("Exception while deleting sync backup file", e);
 						}
-
 					}
 
 				} catch (Exception e) {
@@ -318,7 +349,33 @@ public class ProjectUtils {
 
 	}
 
-	public static Date getOldestSyncBackupDate(String contentXmlPath) {
+	// Reads compressed (.json.gz) and uncompressed (.json, written with the default charset) sync backups
+	public static Reader openSyncBackup(File syncBackupFile) throws IOException {
+
+		InputStream in = new BufferedInputStream(new FileInputStream(syncBackupFile), SYNC_BACKUP_BUFFER_SIZE);
+
+		try {
+
+			in.mark(2);
+			int magic = in.read() | (in.read() << 8);
+			in.reset();
+
+			if (magic == GZIPInputStream.GZIP_MAGIC) {
+				return new InputStreamReader(new GZIPInputStream(in, SYNC_BACKUP_BUFFER_SIZE), StandardCharsets.UTF_8);
+			} else {
+				return new InputStreamReader(in, Charset.defaultCharset());
+			}
+
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+
+	}
+
+	public static List<File> getSyncBackups(String contentXmlPath) {
+
+		List<File> syncBackups = new ArrayList<>();
 
 		File projectDir = getProjectDir(contentXmlPath);
 		if (projectDir != null) {
@@ -326,29 +383,30 @@ public class ProjectUtils {
 			File syncBackupDir = new File(projectDir, SYNC_BACKUP_DIR);
 			if (syncBackupDir.isDirectory()) {
 
-				try {
+				List<Entry> entries = BackupCatalog.get(syncBackupDir).getEntries();
+				for (int i = entries.size() - 1; i >= 0; i--) {
+					syncBackups.add(new File(syncBackupDir, entries.get(i).getFileName()));
+				}
 
-					File[] syncBackups = syncBackupDir.listFiles();
-					if (syncBackups != null && syncBackups.length > 0) {
+			}
 
-						Arrays.sort(syncBackups, new Comparator<File>() {
+		}
 
-							@Override
-							public int compare(File f1, File f2) {
-								try {
-									return SYNC_BACKUP_FILE_DATE_FORMAT.parse(f2.getName()).compareTo(SYNC_BACKUP_FILE_DATE_FORMAT.parse(f1.getName()));
-								} catch (ParseException e) {
-									return 0;
-								}
-							}
-						});
+		return syncBackups;
 
-						return SYNC_BACKUP_FILE_DATE_FORMAT.parse(syncBackups[syncBackups.length - 1].getName());
+	}
 
-					}
+	public static Date getOldestSyncBackupDate(String contentXmlPath) {
 
-				} catch (Exception e) {
-					Common.LOGGER.error("Exception while cleaning sync backup dir", e);
+		File projectDir = getProjectDir(contentXmlPath);
+		if (projectDir != null) {
+
+			File syncBackupDir = new File(projectDir, SYNC_BACKUP_DIR);
+			if (syncBackupDir.isDirectory()) {
+
+				Entry oldest = BackupCatalog.get(syncBackupDir).getOldest();
+				if (oldest != null) {
+					return oldest.getDate();
 				}
 
 			}
@@ -0,0 +1,394 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.backup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.glasspath.common.Common;
+
+// Index of the backups in a backup dir (oldest first), backup file names start with the date of the backup
+// (yyyyMMdd-HHmmss). The index is kept in memory and in a small catalog file in the backup dir, if the
+// catalog file is missing or cannot be read it is rebuilt from the directory. Entries of files which were
+// deleted outside the application are dropped when the catalog is read.
+@SuppressWarnings("nls")
+public class BackupCatalog {
+
+	public static final String CATALOG_FILE = ".catalog";
+	public static final String TEMP_FILE_EXTENSION = "tmp";
+	public static final String FILE_DATE_PATTERN = "yyyyMMdd-HHmmss";
+	public static final DateTimeFormatter FILE_DATE_FORMATTER = DateTimeFormatter.ofPattern(FILE_DATE_PATTERN);
+
+	private static final Map<File, BackupCatalog> CATALOGS = new HashMap<>();
+
+	private final File dir;
+	private final File catalogFile;
+	private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+	private boolean loaded = false;
+
+	private BackupCatalog(File dir) {
+		this.dir = dir;
+		this.catalogFile = new File(dir, CATALOG_FILE);
+	}
+
+	public static BackupCatalog get(File dir) {
+
+		// Same key as ProjectBackupStore, so a dir reached through a symbolic link shares the catalog
+		File key;
+		try {
+			key = dir.getCanonicalFile();
+		} catch (IOException e) {
+			key = dir.getAbsoluteFile();
+		}
+
+		synchronized (CATALOGS) {
+
+			BackupCatalog catalog = CATALOGS.get(key);
+			if (catalog == null) {
+				catalog = new BackupCatalog(key);
+				CATALOGS.put(key, catalog);
+			}
+
+			return catalog;
+
+		}
+
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public synchronized int size() {
+		load();
+		removeMissing();
+		return entries.size();
+	}
+
+	public synchronized Entry getOldest() {
+		load();
+		removeMissing();
+		return entries.peekFirst();
+	}
+
+	public synchronized Entry getNewest() {
+		load();
+		removeMissing();
+		return entries.peekLast();
+	}
+
+	public synchronized List<Entry> getEntries() {
+		load();
+		removeMissing();
+		return new ArrayList<>(entries);
+	}
+
+	public synchronized Entry add(String fileName) {
+
+		load();
+
+		long time = parseTime(fileName);
+		if (time < 0) {
+			return null;
+		}
+
+		Entry entry = new Entry(time, fileName);
+
+		Entry newest = entries.peekLast();
+		if (newest == null || time > newest.time || (time == newest.time && !fileName.equals(newest.fileName))) {
+
+			entries.addLast(entry);
+
+			append(entry);
+
+		} else if (!contains(fileName)) {
+
+			// Clock was changed, insert in order (rare, so we don't mind the linear insert)
+			List<Entry> sorted = new ArrayList<>(entries);
+			sorted.add(entry);
+			Collections.sort(sorted);
+
+			entries.clear();
+			entries.addAll(sorted);
+
+			write();
+
+		}
+
+		return entry;
+
+	}
+
+	public synchronized List<Entry> removeOldest(int maxEntries) {
+
+		load();
+
+		List<Entry> removed = new ArrayList<>();
+
+		while (entries.size() > maxEntries) {
+			removed.add(entries.pollFirst());
+		}
+
+		if (removed.size() > 0) {
+			write();
+		}
+
+		return removed;
+
+	}
+
+	public synchronized void remove(String fileName) {
+
+		load();
+
+		Iterator<Entry> iterator = entries.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().fileName.equals(fileName)) {
+				iterator.remove();
+				write();
+				break;
+			}
+		}
+
+	}
+
+	private void removeMissing() {
+
+		boolean removed = false;
+
+		Iterator<Entry> iterator = entries.iterator();
+		while (iterator.hasNext()) {
+			if (!new File(dir, iterator.next().fileName).exists()) {
+				iterator.remove();
+				removed = true;
+			}
+		}
+
+		if (removed) {
+			write();
+		}
+
+	}
+
+	private boolean contains(String fileName) {
+
+		for (Entry entry : entries) {
+			if (entry.fileName.equals(fileName)) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	private void load() {
+
+		if (loaded) {
+			return;
+		}
+
+		loaded = true;
+
+		if (catalogFile.isFile()) {
+
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(catalogFile), StandardCharsets.UTF_8))) {
+
+				List<Entry> loadedEntries = new ArrayList<>();
+
+				String line;
+				while ((line = reader.readLine()) != null) {
+
+					int index = line.indexOf(' ');
+					if (index <= 0) {
+						throw new IOException("Invalid catalog entry: " + line);
+					}
+
+					loadedEntries.add(new Entry(Long.parseLong(line.substring(0, index)), line.substring(index + 1)));
+
+				}
+
+				Collections.sort(loadedEntries);
+				entries.addAll(loadedEntries);
+
+				return;
+
+			} catch (Exception e) {
+				Common.LOGGER.error("Exception while reading backup catalog, catalog will be rebuilt: " + catalogFile.getAbsolutePath(), e);
+			}
+
+		}
+
+		rebuild();
+
+	}
+
+	public synchronized void rebuild() {
+
+		loaded = true;
+		entries.clear();
+
+		List<Entry> foundEntries = new ArrayList<>();
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+
+			for (File file : files) {
+
+				String fileName = file.getName();
+				if (file.isFile() && !fileName.endsWith("." + TEMP_FILE_EXTENSION)) {
+
+					long time = parseTime(fileName);
+					if (time >= 0) {
+						foundEntries.add(new Entry(time, fileName));
+					}
+
+				}
+
+			}
+
+		}
+
+		Collections.sort(foundEntries);
+		entries.addAll(foundEntries);
+
+		write();
+
+	}
+
+	private void append(Entry entry) {
+
+		// If the catalog file was deleted while we were running, the whole catalog has to be written again
+		if (!catalogFile.exists()) {
+			write();
+			return;
+		}
+
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(catalogFile, true), StandardCharsets.UTF_8))) {
+			writer.write(entry.toLine());
+		} catch (IOException e) {
+			Common.LOGGER.error("Exception while updating backup catalog: " + catalogFile.getAbsolutePath(), e);
+		}
+
+	}
+
+	private void write() {
+
+		if (!dir.isDirectory()) {
+			return;
+		}
+
+		File tempFile = new File(dir, CATALOG_FILE + "." + TEMP_FILE_EXTENSION);
+
+		try {
+
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+				for (Entry entry : entries) {
+					writer.write(entry.toLine());
+				}
+			}
+
+			Files.move(tempFile.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		} catch (IOException e) {
+			Common.LOGGER.error("Exception while writing backup catalog: " + catalogFile.getAbsolutePath(), e);
+		}
+
+	}
+
+	public static long parseTime(String fileName) {
+
+		if (fileName != null && fileName.length() >= FILE_DATE_PATTERN.length()) {
+
+			try {
+				return LocalDateTime.parse(fileName.substring(0, FILE_DATE_PATTERN.length()), FILE_DATE_FORMATTER).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+			} catch (Exception e) {
+				// Not a backup file
+			}
+
+		}
+
+		return -1;
+
+	}
+
+	public static String formatTime(long time) {
+		return FILE_DATE_FORMATTER.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()));
+	}
+
+	public static class Entry implements Comparable<Entry> {
+
+		private final long time;
+		private final String fileName;
+
+		public Entry(long time, String fileName) {
+			this.time = time;
+			this.fileName = fileName;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public Date getDate() {
+			return new Date(time);
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		private String toLine() {
+			return time + " " + fileName + "\n";
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			return time < other.time ? -1 : (time > other.time ? 1 : fileName.compareTo(other.fileName));
+		}
+
+	}
+
+}
@@ -0,0 +1,391 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.backup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.glasspath.common.Common;
+import org.glasspath.revenue.ProjectUtils;
+
+// Creates and prunes backups on a single background thread so callers (like the EDT) never wait for disk I/O.
+// Project backup requests for a project which already has a backup pending are merged into the pending one,
+// when the queue is full a project backup is dropped (the next checkpoint creates one) but a sync backup is
+// never dropped, it waits briefly for the queue and is otherwise written on the calling thread. Pending
+// backups are written when the application exits (see shutdown()).
+@SuppressWarnings("nls")
+public class BackupService {
+
+	public static final int BACKUP_TYPE_PROJECT = 0;
+	public static final int BACKUP_TYPE_SYNC = 1;
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 32;
+	public static final long DEFAULT_FLUSH_TIMEOUT = 30000L;
+	public static final long SYNC_BACKUP_QUEUE_TIMEOUT = 2000L;
+
+	private static BackupService instance = null;
+
+	private final ThreadPoolExecutor executor;
+	private final Map<String, ProjectBackupTask> pendingProjectBackups = new HashMap<>();
+	private final List<BackupListener> listeners = new ArrayList<>();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong totalDuration = new AtomicLong();
+
+	public BackupService(int queueCapacity) {
+
+		executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+
+				Thread thread = new Thread(runnable, "Backup service");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+
+				return thread;
+
+			}
+		}, new RejectedExecutionHandler() {
+
+			@Override
+			public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+
+				if (executor.isShutdown()) {
+					throw new RejectedExecutionException("Backup service is shut down");
+				}
+
+				// Queue is full (only possible with many sync backups in a row), the caller can be the EDT so we don't wait here
+				throw new RejectedExecutionException("Backup queue is full");
+
+			}
+		});
+
+		// Sync backups are offered to the queue directly when it is full, so the thread must be running
+		executor.prestartAllCoreThreads();
+
+		// The backup thread is a daemon thread, without this hook pending backups would be lost at exit
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				shutdown(DEFAULT_FLUSH_TIMEOUT);
+			}
+		}, "Backup service shutdown"));
+
+	}
+
+	public static synchronized BackupService getInstance() {
+
+		if (instance == null) {
+			instance = new BackupService(DEFAULT_QUEUE_CAPACITY);
+		}
+
+		return instance;
+
+	}
+
+	public void addBackupListener(BackupListener listener) {
+		synchronized (listeners) {
+			listeners.add(listener);
+		}
+	}
+
+	public void removeBackupListener(BackupListener listener) {
+		synchronized (listeners) {
+			listeners.remove(listener);
+		}
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getTotalDuration() {
+		return totalDuration.get();
+	}
+
+	public int getPendingCount() {
+		return executor.getQueue().size();
+	}
+
+	public void createProjectBackup(String contentXmlPath, int maxProjectBackups) {
+
+		synchronized (pendingProjectBackups) {
+
+			ProjectBackupTask pendingTask = pendingProjectBackups.get(contentXmlPath);
+			if (pendingTask != null) {
+				pendingTask.maxProjectBackups = maxProjectBackups;
+				coalescedCount.incrementAndGet();
+				return;
+			}
+
+			ProjectBackupTask task = new ProjectBackupTask(contentXmlPath, maxProjectBackups);
+			pendingProjectBackups.put(contentXmlPath, task);
+
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				pendingProjectBackups.remove(contentXmlPath);
+				droppedCount.incrementAndGet();
+				Common.LOGGER.error("Project backup could not be scheduled", e);
+			}
+
+		}
+
+	}
+
+	public void createSyncBackup(final String contentXmlPath, final String syncDataAsJson, final int maxSyncBackups) {
+
+		BackupTask task = new BackupTask(BACKUP_TYPE_SYNC, contentXmlPath) {
+
+			@Override
+			protected void perform() throws Exception {
+				ProjectUtils.writeSyncBackup(contentXmlPath, new SyncBackupWriter() {
+
+					@Override
+					public void write(Writer writer) throws IOException {
+						writer.write(syncDataAsJson);
+					}
+				}, maxSyncBackups);
+			}
+		};
+
+		submit(task);
+
+	}
+
+	// The writer is called on the backup thread, so the data it writes must not be changed after submitting
+	public void createSyncBackup(final String contentXmlPath, final SyncBackupWriter syncBackupWriter, final int maxSyncBackups) {
+
+		BackupTask task = new BackupTask(BACKUP_TYPE_SYNC, contentXmlPath) {
+
+			@Override
+			protected void perform() throws Exception {
+				ProjectUtils.writeSyncBackup(contentXmlPath, syncBackupWriter, maxSyncBackups);
+			}
+		};
+
+		submit(task);
+
+	}
+
+	private void submit(BackupTask task) {
+
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+
+			// A sync backup is the only copy of the sync data, so it is never dropped
+			try {
+				if (!executor.isShutdown() && executor.getQueue().offer(task, SYNC_BACKUP_QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+
+			Common.LOGGER.error("Sync backup could not be scheduled, writing it on the calling thread", e);
+			task.run();
+
+		}
+
+	}
+
+	public boolean flush(long timeout) {
+
+		long deadline = System.currentTimeMillis() + timeout;
+
+		try {
+
+			Future<?> marker = null;
+			while (marker == null) {
+
+				try {
+					marker = executor.submit(new Runnable() {
+
+						@Override
+						public void run() {
+
+						}
+					});
+				} catch (RejectedExecutionException e) {
+
+					// Queue is full, flush() is allowed to wait (it isn't called on the EDT)
+					if (executor.isShutdown() || System.currentTimeMillis() >= deadline) {
+						return false;
+					}
+
+					Thread.sleep(10);
+
+				}
+
+			}
+
+			marker.get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+			return true;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException e) {
+			Common.LOGGER.error("Backup service could not be flushed", e);
+		}
+
+		return false;
+
+	}
+
+	// Pending backups belong to saves which are already finished, so they are always written before the service
+	// stops (called by a shutdown hook when the application exits)
+	public void shutdown(long timeout) {
+
+		executor.shutdown();
+
+		try {
+			if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				Common.LOGGER.error("Backup service did not finish pending backups within " + timeout + " ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	private void fireBackupStarted(BackupTask task) {
+		for (BackupListener listener : getListeners()) {
+			listener.backupStarted(task.type, task.contentXmlPath, getPendingCount());
+		}
+	}
+
+	private void fireBackupFinished(BackupTask task, long duration, Exception exception) {
+		for (BackupListener listener : getListeners()) {
+			listener.backupFinished(task.type, task.contentXmlPath, duration, exception);
+		}
+	}
+
+	private List<BackupListener> getListeners() {
+		synchronized (listeners) {
+			return new ArrayList<>(listeners);
+		}
+	}
+
+	private abstract class BackupTask implements Runnable {
+
+		final int type;
+		final String contentXmlPath;
+
+		private BackupTask(int type, String contentXmlPath) {
+			this.type = type;
+			this.contentXmlPath = contentXmlPath;
+		}
+
+		@Override
+		public void run() {
+
+			fireBackupStarted(this);
+
+			long start = System.currentTimeMillis();
+			Exception exception = null;
+
+			try {
+				perform();
+				completedCount.incrementAndGet();
+			} catch (Exception e) {
+				exception = e;
+				failedCount.incrementAndGet();
+				Common.LOGGER.error("Exception while creating backup", e);
+			}
+
+			long duration = System.currentTimeMillis() - start;
+			totalDuration.addAndGet(duration);
+
+			fireBackupFinished(this, duration, exception);
+
+		}
+
+		protected abstract void perform() throws Exception;
+
+	}
+
+	private class ProjectBackupTask extends BackupTask {
+
+		private volatile int maxProjectBackups;
+
+		private ProjectBackupTask(String contentXmlPath, int maxProjectBackups) {
+			super(BACKUP_TYPE_PROJECT, contentXmlPath);
+			this.maxProjectBackups = maxProjectBackups;
+		}
+
+		@Override
+		protected void perform() throws Exception {
+
+			// From now on new requests must create a new backup (the content could be changed after this backup)
+			synchronized (pendingProjectBackups) {
+				pendingProjectBackups.remove(contentXmlPath);
+			}
+
+			ProjectUtils.writeProjectBackup(contentXmlPath, maxProjectBackups);
+
+		}
+
+	}
+
+	public static interface BackupListener {
+
+		// Called on the backup thread, use SwingUtilities.invokeLater() to update the UI
+		public void backupStarted(int type, String contentXmlPath, int pendingCount);
+
+		public void backupFinished(int type, String contentXmlPath, long duration, Exception exception);
+
+	}
+
+}
@@ -0,0 +1,476 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.backup;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.glasspath.common.Common;
+import org.glasspath.revenue.backup.BackupCatalog.Entry;
+
+// Deduplicating backup store, files are split into content defined chunks (gear hash), every chunk is
+// stored once (deflated) under its SHA-1 and a snapshot is a small manifest listing the chunks. Because
+// chunk boundaries depend on the content, an edit only changes the chunks around it. There is one store per
+// backup dir (see get()), pruning deletes unreferenced chunks which a concurrent snapshot could otherwise reuse.
+@SuppressWarnings("nls")
+public class ProjectBackupStore {
+
+	public static final String CHUNKS_DIR = "chunks";
+	public static final String MANIFEST_EXTENSION = "manifest";
+	public static final String LEGACY_BACKUP_EXTENSION = "xml";
+	public static final String MANIFEST_HEADER = "GPBM 1";
+
+	public static final int MIN_CHUNK_SIZE = 2 * 1024;
+	public static final int MAX_CHUNK_SIZE = 64 * 1024;
+	public static final long CHUNK_BOUNDARY_MASK = 0xFFF8000000000000L; // 13 bits, average chunk size of 8 kB
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final long[] GEAR = createGearTable();
+	private static final Map<File, ProjectBackupStore> STORES = new HashMap<>();
+
+	private final File dir;
+	private final File chunksDir;
+	private final BackupCatalog catalog;
+
+	private ProjectBackupStore(File dir) {
+		this.dir = dir;
+		this.chunksDir = new File(dir, CHUNKS_DIR);
+		this.catalog = BackupCatalog.get(dir);
+	}
+
+	public static ProjectBackupStore get(File dir) {
+
+		File key;
+		try {
+			key = dir.getCanonicalFile();
+		} catch (IOException e) {
+			key = dir.getAbsoluteFile();
+		}
+
+		synchronized (STORES) {
+
+			ProjectBackupStore store = STORES.get(key);
+			if (store == null) {
+				store = new ProjectBackupStore(key);
+				STORES.put(key, store);
+			}
+
+			return store;
+
+		}
+
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public synchronized Snapshot createSnapshot(File file) throws IOException {
+
+		chunksDir.mkdirs();
+
+		Date date = new Date();
+		String name = BackupCatalog.formatTime(date.getTime());
+
+		// Snapshots created in the same second get a sequence number, the suffix sorts after the first snapshot
+		File manifestFile = new File(dir, name + "." + MANIFEST_EXTENSION);
+		for (int sequence = 2; manifestFile.exists(); sequence++) {
+			name = BackupCatalog.formatTime(date.getTime()) + String.format("_%03d", sequence);
+			manifestFile = new File(dir, name + "." + MANIFEST_EXTENSION);
+		}
+
+		File tempFile = new File(dir, name + "." + MANIFEST_EXTENSION + ".tmp");
+
+		MessageDigest digest = createDigest();
+
+		byte[] buffer = new byte[BUFFER_SIZE];
+		byte[] chunk = new byte[MAX_CHUNK_SIZE];
+		int chunkLength = 0;
+		long size = 0;
+		long hash = 0;
+		int storedChunks = 0;
+
+		try (InputStream in = new FileInputStream(file); Writer manifest = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+
+			manifest.write(MANIFEST_HEADER + "\n");
+
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+
+				for (int i = 0; i < n; i++) {
+
+					chunk[chunkLength++] = buffer[i];
+					hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+
+					if ((chunkLength >= MIN_CHUNK_SIZE && (hash & CHUNK_BOUNDARY_MASK) == 0) || chunkLength == MAX_CHUNK_SIZE) {
+
+						if (writeChunk(manifest, digest, chunk, chunkLength)) {
+							storedChunks++;
+						}
+
+						size += chunkLength;
+						chunkLength = 0;
+						hash = 0;
+
+					}
+
+				}
+
+			}
+
+			if (chunkLength > 0) {
+
+				if (writeChunk(manifest, digest, chunk, chunkLength)) {
+					storedChunks++;
+				}
+
+				size += chunkLength;
+
+			}
+
+		}
+
+		Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		catalog.add(manifestFile.getName());
+
+		Common.LOGGER.debug("Project backup " + name + " created, " + storedChunks + " new chunks stored");
+
+		return new Snapshot(name, date, size, manifestFile);
+
+	}
+
+	private boolean writeChunk(Writer manifest, MessageDigest digest, byte[] chunk, int length) throws IOException {
+
+		digest.reset();
+		digest.update(chunk, 0, length);
+		String id = toHex(digest.digest());
+
+		manifest.write(id + " " + length + "\n");
+
+		File chunkFile = getChunkFile(id);
+		if (chunkFile.exists()) {
+			return false;
+		}
+
+		chunkFile.getParentFile().mkdirs();
+
+		File tempFile = new File(chunkFile.getParentFile(), id + ".tmp");
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(tempFile), deflater, BUFFER_SIZE)) {
+			out.write(chunk, 0, length);
+		} finally {
+			deflater.end();
+		}
+
+		Files.move(tempFile.toPath(), chunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		return true;
+
+	}
+
+	public synchronized List<Snapshot> listSnapshots() {
+
+		List<Snapshot> snapshots = new ArrayList<>();
+
+		List<Entry> entries = catalog.getEntries();
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			Snapshot snapshot = createSnapshot(entries.get(i));
+			if (snapshot != null) {
+				snapshots.add(snapshot);
+			}
+		}
+
+		return snapshots;
+
+	}
+
+	private Snapshot createSnapshot(Entry entry) {
+
+		String fileName = entry.getFileName();
+		if (fileName.endsWith("." + MANIFEST_EXTENSION) || fileName.endsWith("." + LEGACY_BACKUP_EXTENSION)) {
+			return new Snapshot(fileName.substring(0, fileName.lastIndexOf('.')), entry.getDate(), -1, new File(dir, fileName));
+		} else {
+			return null;
+		}
+
+	}
+
+	public synchronized void restore(Snapshot snapshot, File target) throws IOException {
+
+		File tempFile = new File(target.getParentFile(), target.getName() + ".tmp");
+
+		if (snapshot.isLegacy()) {
+			Files.copy(snapshot.getFile().toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} else {
+
+			MessageDigest digest = createDigest();
+			byte[] chunk = new byte[MAX_CHUNK_SIZE + 1];
+
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE)) {
+
+				for (ChunkRef chunkRef : readChunkRefs(snapshot.getFile())) {
+
+					String id = chunkRef.id;
+					File chunkFile = getChunkFile(id);
+					if (!chunkFile.exists()) {
+						throw new IOException("Backup chunk is missing: " + chunkFile.getAbsolutePath());
+					}
+
+					int length = 0;
+					try (InputStream in = new InflaterInputStream(new FileInputStream(chunkFile))) {
+						int n;
+						while (length < chunk.length && (n = in.read(chunk, length, chunk.length - length)) > 0) {
+							length += n;
+						}
+					}
+
+					// A damaged chunk must not end up in the restored file
+					if (length != chunkRef.length) {
+						throw new IOException("Backup chunk is damaged (" + length + " instead of " + chunkRef.length + " bytes): " + chunkFile.getAbsolutePath());
+					}
+
+					digest.reset();
+					digest.update(chunk, 0, length);
+					if (!id.equals(toHex(digest.digest()))) {
+						throw new IOException("Backup chunk is damaged: " + chunkFile.getAbsolutePath());
+					}
+
+					out.write(chunk, 0, length);
+
+				}
+
+			} catch (IOException e) {
+				tempFile.delete();
+				throw e;
+			}
+
+		}
+
+		Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+	}
+
+	public synchronized void prune(int maxSnapshots) {
+
+		List<Entry> removed = catalog.removeOldest(maxSnapshots);
+		if (removed.size() == 0) {
+			return;
+		}
+
+		for (Entry entry : removed) {
+			File file = new File(dir, entry.getFileName());
+			if (file.exists() && !file.delete()) {
+				Common.LOGGER.error("Project backup could not be deleted: " + file.getAbsolutePath());
+			}
+		}
+
+		// Chunks which are not referenced by any of the remaining snapshots can be deleted
+		try {
+
+			Set<String> referencedIds = new HashSet<>();
+			for (Snapshot snapshot : listSnapshots()) {
+				if (!snapshot.isLegacy()) {
+					for (ChunkRef chunkRef : readChunkRefs(snapshot.getFile())) {
+						referencedIds.add(chunkRef.id);
+					}
+				}
+			}
+
+			File[] chunkDirs = chunksDir.listFiles();
+			if (chunkDirs != null) {
+
+				for (File chunkDir : chunkDirs) {
+
+					File[] chunkFiles = chunkDir.listFiles();
+					if (chunkFiles != null) {
+						for (File chunkFile : chunkFiles) {
+							if (!referencedIds.contains(chunkFile.getName())) {
+								chunkFile.delete();
+							}
+						}
+					}
+
+				}
+
+			}
+
+		} catch (Exception e) {
+			Common.LOGGER.error("Exception while deleting unused project backup chunks", e);
+		}
+
+	}
+
+	private List<ChunkRef> readChunkRefs(File manifestFile) throws IOException {
+
+		List<ChunkRef> chunkRefs = new ArrayList<>();
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8))) {
+
+			if (!MANIFEST_HEADER.equals(reader.readLine())) {
+				throw new IOException("Invalid backup manifest: " + manifestFile.getAbsolutePath());
+			}
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+
+				int index = line.indexOf(' ');
+				if (index > 0) {
+
+					int length;
+					try {
+						length = Integer.parseInt(line.substring(index + 1).trim());
+					} catch (NumberFormatException e) {
+						length = -1;
+					}
+
+					if (length <= 0 || length > MAX_CHUNK_SIZE) {
+						throw new IOException("Invalid backup manifest entry: " + line);
+					}
+
+					chunkRefs.add(new ChunkRef(line.substring(0, index), length));
+
+				}
+
+			}
+
+		}
+
+		return chunkRefs;
+
+	}
+
+	private File getChunkFile(String id) {
+		return new File(new File(chunksDir, id.substring(0, 2)), id);
+	}
+
+	private static MessageDigest createDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+
+		char[] chars = new char[bytes.length * 2];
+
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+
+		return new String(chars);
+
+	}
+
+	private static long[] createGearTable() {
+
+		// Fixed seed, chunk boundaries must be the same every time the application runs
+		Random random = new Random(0x5EED5EEDL);
+
+		long[] table = new long[256];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = random.nextLong();
+		}
+
+		return table;
+
+	}
+
+	private static class ChunkRef {
+
+		private final String id;
+		private final int length;
+
+		private ChunkRef(String id, int length) {
+			this.id = id;
+			this.length = length;
+		}
+
+	}
+
+	public static class Snapshot {
+
+		private final String name;
+		private final Date date;
+		private final long size;
+		private final File file;
+
+		public Snapshot(String name, Date date, long size, File file) {
+			this.name = name;
+			this.date = date;
+			this.size = size;
+			this.file = file;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Date getDate() {
+			return date;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public boolean isLegacy() {
+			return file.getName().endsWith("." + LEGACY_BACKUP_EXTENSION);
+		}
+
+	}
+
+}
@@ -0,0 +1,296 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import org.glasspath.common.date.DateUtils;
+
+// Parses the dates of a csv column, the format of the column is detected once (from a sample or from the first
+// value) and used for the next values as long as they match it. Formats which only contain numbers are parsed
+// without SimpleDateFormat, the result is the same as with a lenient SimpleDateFormat in the GMT time zone.
+public class CsvDateParser {
+
+	public static final Pattern[] DATE_PATTERNS = compilePatterns();
+
+	private static final int MIN_FAST_PARSE_YEAR = 1600; // Before this the gregorian calendar isn't used
+	private static final char[][] NUMERIC_FIELDS = createNumericFields();
+
+	private static final ThreadLocal<DateFormat[]> DATE_FORMATS = new ThreadLocal<DateFormat[]>() {
+
+		@Override
+		protected DateFormat[] initialValue() {
+			return new DateFormat[CsvImporter.DATE_FORMATS.length];
+		}
+	};
+
+	private volatile int formatIndex = -1;
+
+	public CsvDateParser() {
+
+	}
+
+	public int getFormatIndex() {
+		return formatIndex;
+	}
+
+	public String getFormat() {
+		int index = formatIndex;
+		return index >= 0 ? CsvImporter.DATE_FORMATS[index][1] : null;
+	}
+
+	// Selects the format which matches most of the sample values
+	public int detect(Iterable<?> samples) {
+
+		int[] matches = new int[DATE_PATTERNS.length];
+
+		for (Object sample : samples) {
+			if (sample != null) {
+				int index = findFormat(sample.toString().toLowerCase());
+				if (index >= 0) {
+					matches[index]++;
+				}
+			}
+		}
+
+		int bestIndex = -1;
+		for (int i = 0; i < matches.length; i++) {
+			if (matches[i] > 0 && (bestIndex < 0 || matches[i] > matches[bestIndex])) {
+				bestIndex = i;
+			}
+		}
+
+		formatIndex = bestIndex;
+
+		return bestIndex;
+
+	}
+
+	public Date parse(Object value) {
+
+		if (value == null) {
+			return null;
+		}
+
+		String s = value.toString().toLowerCase();
+
+		int index = formatIndex;
+		if (index < 0 || !DATE_PATTERNS[index].matcher(s).matches()) {
+
+			index = findFormat(s);
+			if (index < 0) {
+				return null;
+			}
+
+			formatIndex = index;
+
+		}
+
+		try {
+
+			if (NUMERIC_FIELDS[index] != null) {
+				Date date = parseNumeric(s, CsvImporter.DATE_FORMATS[index][1], NUMERIC_FIELDS[index]);
+				if (date != null) {
+					return date;
+				}
+			}
+
+			return getDateFormat(index).parse(s);
+
+		} catch (Exception e) {
+			return null;
+		}
+
+	}
+
+	private static int findFormat(String s) {
+
+		for (int i = 0; i < DATE_PATTERNS.length; i++) {
+			if (DATE_PATTERNS[i].matcher(s).matches()) {
+				return i;
+			}
+		}
+
+		return -1;
+
+	}
+
+	private static DateFormat getDateFormat(int index) {
+
+		DateFormat[] dateFormats = DATE_FORMATS.get();
+
+		DateFormat format = dateFormats[index];
+		if (format == null) {
+			format = new SimpleDateFormat(CsvImporter.DATE_FORMATS[index][1]);
+			format.setTimeZone(DateUtils.GMT_TIME_ZONE);
+			dateFormats[index] = format;
+		}
+
+		return format;
+
+	}
+
+	// The string is known to match the pattern of the format, so it only contains digits and separators
+	private static Date parseNumeric(String s, String format, char[] fields) {
+
+		int year = 0;
+		int month = 1;
+		int day = 1;
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+
+		int position = 0;
+		int fieldIndex = 0;
+
+		for (int i = 0; i < format.length(); i++) {
+
+			char c = format.charAt(i);
+			if (Character.isLetter(c)) {
+
+				int width = 1;
+				while (i + 1 < format.length() && format.charAt(i + 1) == c) {
+					width++;
+					i++;
+				}
+
+				// Fields without a separator have a fixed width, otherwise all digits are used
+				boolean fixedWidth = i + 1 < format.length() && Character.isLetter(format.charAt(i + 1));
+
+				int fieldValue = 0;
+				int digits = 0;
+				while (position < s.length() && (!fixedWidth || digits < width)) {
+
+					char digit = s.charAt(position);
+					if (digit < '0' || digit > '9') {
+						break;
+					}
+
+					fieldValue = fieldValue * 10 + (digit - '0');
+					digits++;
+					position++;
+
+				}
+
+				if (digits == 0) {
+					return null;
+				}
+
+				switch (fields[fieldIndex++]) {
+				case 'y':
+					year = fieldValue;
+					break;
+				case 'M':
+					month = fieldValue;
+					break;
+				case 'd':
+					day = fieldValue;
+					break;
+				case 'H':
+					hour = fieldValue;
+					break;
+				case 'm':
+					minute = fieldValue;
+					break;
+				case 's':
+					second = fieldValue;
+					break;
+				default:
+					return null;
+				}
+
+			} else {
+				position++; // Separator
+			}
+
+		}
+
+		if (year < MIN_FAST_PARSE_YEAR) {
+			return null;
+		}
+
+		// Lenient, like SimpleDateFormat: month 13 is january of the next year, day 0 is the last day of the previous month
+		year += Math.floorDiv(month - 1, 12);
+		month = Math.floorMod(month - 1, 12) + 1;
+
+		long epochDay = LocalDate.of(year, month, 1).toEpochDay() + day - 1;
+
+		return new Date((((epochDay * 24 + hour) * 60 + minute) * 60 + second) * 1000L);
+
+	}
+
+	private static Pattern[] compilePatterns() {
+
+		Pattern[] patterns = new Pattern[CsvImporter.DATE_FORMATS.length];
+		for (int i = 0; i < patterns.length; i++) {
+			patterns[i] = Pattern.compile(CsvImporter.DATE_FORMATS[i][0]);
+		}
+
+		return patterns;
+
+	}
+
+	private static char[][] createNumericFields() {
+
+		char[][] numericFields = new char[CsvImporter.DATE_FORMATS.length][];
+
+		for (int i = 0; i < numericFields.length; i++) {
+
+			String format = CsvImporter.DATE_FORMATS[i][1];
+
+			StringBuilder fields = new StringBuilder();
+			boolean numeric = true;
+
+			for (int j = 0; j < format.length(); j++) {
+
+				char c = format.charAt(j);
+				if (Character.isLetter(c)) {
+
+					if ("yMdHms".indexOf(c) < 0 || (c == 'M' && format.indexOf("MMM") >= 0)) { //$NON-NLS-1$ //$NON-NLS-2$
+						numeric = false;
+						break;
+					}
+
+					if (j == 0 || format.charAt(j - 1) != c) {
+						fields.append(c);
+					}
+
+				}
+
+			}
+
+			if (numeric) {
+				numericFields[i] = fields.toString().toCharArray();
+			}
+
+		}
+
+		return numericFields;
+
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.util.Arrays;
+import java.util.Date;
+
+// Set of the keys of items (the key fields of an item, like date, client and amount) with open addressing,
+// checking if an imported row already exists is a single probe instead of a scan of all existing items.
+// The slot of a key is found by a 64 bit hash, a key is only found if all key fields are equal, so two
+// different items with the same hash are never taken for duplicates.
+public class CsvDuplicateIndex {
+
+	public static final long AMOUNT_SCALE = 100L; // Amounts are compared in cents
+
+	private static final long START_HASH = 0xCBF29CE484222325L;
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private long[] hashes;
+	private Key[] keys;
+	private int size = 0;
+
+	public CsvDuplicateIndex() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public CsvDuplicateIndex(int expectedSize) {
+		int tableSize = tableSize(expectedSize);
+		hashes = new long[tableSize];
+		keys = new Key[tableSize];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean contains(Key key) {
+
+		int mask = keys.length - 1;
+		int index = (int) mix(key.hash) & mask;
+
+		while (true) {
+			Key existing = keys[index];
+			if (existing == null) {
+				return false;
+			} else if (hashes[index] == key.hash && existing.equals(key)) {
+				return true;
+			}
+			index = (index + 1) & mask;
+		}
+
+	}
+
+	// Returns false if the key was already in the index
+	public boolean add(Key key) {
+
+		if ((size + 1) * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+
+		int mask = keys.length - 1;
+		int index = (int) mix(key.hash) & mask;
+
+		while (true) {
+			Key existing = keys[index];
+			if (existing == null) {
+				hashes[index] = key.hash;
+				keys[index] = key;
+				size++;
+				return true;
+			} else if (hashes[index] == key.hash && existing.equals(key)) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+
+	}
+
+	public void clear() {
+		int tableSize = tableSize(DEFAULT_CAPACITY);
+		hashes = new long[tableSize];
+		keys = new Key[tableSize];
+		size = 0;
+	}
+
+	private void resize(int capacity) {
+
+		long[] oldHashes = hashes;
+		Key[] oldKeys = keys;
+		hashes = new long[capacity];
+		keys = new Key[capacity];
+
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int index = (int) mix(oldHashes[i]) & mask;
+				while (keys[index] != null) {
+					index = (index + 1) & mask;
+				}
+				hashes[index] = oldHashes[i];
+				keys[index] = oldKeys[i];
+			}
+		}
+
+	}
+
+	private static int tableSize(int expectedSize) {
+		int tableSize = 16;
+		while (tableSize < expectedSize * 2) {
+			tableSize *= 2;
+		}
+		return tableSize;
+	}
+
+	// Amounts are rounded to cents, so 0.1F and 0.1 (or 0.1 and 0.1000000001) are the same amount
+	public static long toMinorUnits(double amount) {
+		return Math.round(amount * AMOUNT_SCALE);
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static long combine(long hash, long value) {
+		return mix((hash ^ value) * 0x100000001B3L + 0x9E3779B97F4A7C15L);
+	}
+
+	private static long combine(long hash, Object value) {
+
+		if (value instanceof Long) {
+			return combine(hash, ((Long) value).longValue());
+		} else if (value instanceof String) {
+
+			String string = (String) value;
+
+			long stringHash = START_HASH;
+			for (int i = 0; i < string.length(); i++) {
+				stringHash = (stringHash ^ string.charAt(i)) * 0x100000001B3L;
+			}
+
+			return combine(hash, stringHash);
+
+		} else if (value != null) {
+			return combine(hash, value.hashCode());
+		} else {
+			return combine(hash, -1L);
+		}
+
+	}
+
+	// Values are stored in the same form whatever the type used by the caller: whole numbers and dates as Long,
+	// other numbers (amounts) as Long in minor units and text as String
+	private static Object toKeyValue(Object value) {
+
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		} else if (value instanceof Number) {
+			return toMinorUnits(((Number) value).doubleValue());
+		} else if (value instanceof Date) {
+			return ((Date) value).getTime();
+		} else if (value instanceof CharSequence) {
+			return value.toString();
+		} else {
+			return value;
+		}
+
+	}
+
+	// The key fields of an item, importers must create the key of an existing item with the values in the same
+	// order as the key of an imported row (see CsvStagingBuffer.getKey())
+	public static class Key {
+
+		private final Object[] values;
+		private final long hash;
+
+		public Key(Object... values) {
+
+			this.values = new Object[values.length];
+
+			long hash = START_HASH;
+			for (int i = 0; i < values.length; i++) {
+				this.values[i] = toKeyValue(values[i]);
+				hash = combine(hash, this.values[i]);
+			}
+
+			this.hash = hash;
+
+		}
+
+		public long getHash() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && ((Key) obj).hash == hash && Arrays.equals(((Key) obj).values, values);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash ^ (hash >>> 32));
+		}
+
+	}
+
+}
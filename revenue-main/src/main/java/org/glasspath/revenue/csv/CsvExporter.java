@@ -0,0 +1,303 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.prefs.Preferences;
+
+import org.glasspath.common.date.DateUtils;
+import org.glasspath.common.format.FormatUtils;
+import org.glasspath.revenue.preferences.CsvPreferencesPanel;
+
+// Writes rows to a csv file while they are taken from the iterator, so only the current row and the buffers
+// are in memory. The text is encoded into a direct buffer which is written to the file channel when it's full.
+public class CsvExporter {
+
+	public static final String DEFAULT_DATE_FORMAT = "dd-MM-yyyy"; //$NON-NLS-1$
+	public static final String LINE_SEPARATOR = "\r\n"; //$NON-NLS-1$
+	public static final int CHAR_BUFFER_SIZE = 64 * 1024;
+	public static final int BYTE_BUFFER_SIZE = 1024 * 1024;
+
+	private final char separator;
+	private final boolean useQuotes;
+	private final Charset charset;
+	private final NumberFormat numberFormat;
+	private DateFormat dateFormat;
+	private long lastDate = Long.MIN_VALUE;
+	private String lastDateString = null;
+	private CharBuffer charBuffer = null;
+	private ByteBuffer byteBuffer = null;
+	private CharsetEncoder encoder = null;
+	private FileChannel channel = null;
+
+	public CsvExporter(char separator, boolean useQuotes) {
+		this(separator, useQuotes, StandardCharsets.UTF_8);
+	}
+
+	public CsvExporter(char separator, boolean useQuotes, Charset charset) {
+
+		this.separator = separator;
+		this.useQuotes = useQuotes;
+		this.charset = charset;
+
+		// Formats are copied, so the exporter doesn't have to synchronize with other users of the shared formats
+		this.numberFormat = (NumberFormat) FormatUtils.DECIMAL_FORMAT.clone();
+		this.numberFormat.setGroupingUsed(false);
+
+		setDateFormat(DEFAULT_DATE_FORMAT);
+
+	}
+
+	public static CsvExporter create(Preferences preferences) {
+		return new CsvExporter(CsvPreferencesPanel.getCsvSeparator(preferences), CsvPreferencesPanel.USE_QUOTES.get(preferences));
+	}
+
+	public void setDateFormat(String pattern) {
+		setDateFormat(new SimpleDateFormat(pattern));
+	}
+
+	// The locale is used for the names of days and months (E and MMM in the pattern)
+	public void setDateFormat(String pattern, Locale locale) {
+		setDateFormat(new SimpleDateFormat(pattern, locale));
+	}
+
+	private void setDateFormat(DateFormat dateFormat) {
+		this.dateFormat = dateFormat;
+		this.dateFormat.setTimeZone(DateUtils.GMT_TIME_ZONE);
+		lastDate = Long.MIN_VALUE;
+		lastDateString = null;
+	}
+
+	public long export(File file, String[] header, Iterator<Object[]> rows) throws IOException {
+
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp"); //$NON-NLS-1$
+
+		charBuffer = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+		byteBuffer = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+		encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		long rowCount = 0;
+
+		try {
+
+			try (FileChannel fileChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+				channel = fileChannel;
+
+				if (header != null) {
+					writeRow(header);
+				}
+
+				while (rows.hasNext()) {
+					writeRow(rows.next());
+					rowCount++;
+				}
+
+				flush(true);
+
+			}
+
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		} catch (IOException | RuntimeException e) {
+			tempFile.delete();
+			throw e;
+		} finally {
+			channel = null;
+			charBuffer = null;
+			byteBuffer = null;
+			encoder = null;
+		}
+
+		return rowCount;
+
+	}
+
+	private void writeRow(Object[] row) throws IOException {
+
+		for (int i = 0; i < row.length; i++) {
+
+			if (i > 0) {
+				append(separator);
+			}
+
+			writeValue(format(row[i]));
+
+		}
+
+		append(LINE_SEPARATOR);
+
+	}
+
+	private String format(Object value) {
+
+		if (value == null) {
+			return ""; //$NON-NLS-1$
+		} else if (value instanceof String) {
+			return (String) value;
+		} else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			return value.toString();
+		} else if (value instanceof Number) {
+			return numberFormat.format(value);
+		} else if (value instanceof Date) {
+
+			// Rows are usually sorted by date, so the same date is often formatted a number of times in a row
+			long time = ((Date) value).getTime();
+			if (time != lastDate || lastDateString == null) {
+				lastDate = time;
+				lastDateString = dateFormat.format((Date) value);
+			}
+
+			return lastDateString;
+
+		} else {
+			return value.toString();
+		}
+
+	}
+
+	private void writeValue(String value) throws IOException {
+
+		// Without quotes a value which contains a separator, quote or line break would break the file
+		boolean quote = useQuotes;
+		if (!quote) {
+			for (int i = 0; i < value.length() && !quote; i++) {
+				char c = value.charAt(i);
+				quote = c == separator || c == '"' || c == '\n' || c == '\r';
+			}
+		}
+
+		if (quote) {
+
+			append('"');
+
+			int start = 0;
+			int index;
+			while ((index = value.indexOf('"', start)) >= 0) {
+				append(value, start, index + 1);
+				append('"');
+				start = index + 1;
+			}
+			append(value, start, value.length());
+
+			append('"');
+
+		} else {
+			append(value, 0, value.length());
+		}
+
+	}
+
+	private void append(char c) throws IOException {
+		if (!charBuffer.hasRemaining()) {
+			flush(false);
+		}
+		charBuffer.put(c);
+	}
+
+	private void append(String s) throws IOException {
+		append(s, 0, s.length());
+	}
+
+	private void append(String s, int start, int end) throws IOException {
+
+		while (start < end) {
+
+			if (!charBuffer.hasRemaining()) {
+				flush(false);
+			}
+
+			int count = Math.min(end - start, charBuffer.remaining());
+			charBuffer.put(s, start, start + count);
+			start += count;
+
+		}
+
+	}
+
+	private void flush(boolean endOfInput) throws IOException {
+
+		charBuffer.flip();
+
+		while (true) {
+
+			CoderResult result = encoder.encode(charBuffer, byteBuffer, endOfInput);
+			if (result.isOverflow()) {
+				writeBytes();
+			} else if (result.isUnderflow()) {
+				break;
+			} else {
+				try {
+					result.throwException();
+				} catch (CharacterCodingException e) {
+					throw new IOException(e);
+				}
+			}
+
+		}
+
+		if (endOfInput) {
+			while (encoder.flush(byteBuffer).isOverflow()) {
+				writeBytes();
+			}
+		}
+
+		// A surrogate pair can be split over two flushes, the first half stays in the buffer
+		charBuffer.compact();
+
+		if (endOfInput || byteBuffer.remaining() < byteBuffer.capacity() / 4) {
+			writeBytes();
+		}
+
+	}
+
+	private void writeBytes() throws IOException {
+
+		byteBuffer.flip();
+		while (byteBuffer.hasRemaining()) {
+			channel.write(byteBuffer);
+		}
+		byteBuffer.clear();
+
+	}
+
+}
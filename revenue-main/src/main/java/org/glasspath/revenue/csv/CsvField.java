@@ -34,6 +34,13 @@ public abstract class CsvField {
 		return name;
 	}
 
+	// Called by the conversion stage of the import pipeline (not on the thread which imports the rows, in
+	// parallel mode by more than one thread at the same time), the result is passed to importField().
+	// An exception marks the row as invalid, the row is reported as an error instead of being imported.
+	public Object convert(String value) {
+		return value;
+	}
+
 	public abstract boolean importField(Object value);
 
 }
@@ -0,0 +1,188 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// Cursor of an import which is committed in batches, after every committed batch the position (byte offset
+// after the last row of the batch) and row number are written to the checkpoint file. A cancelled or failed
+// import can continue at the cursor, the checkpoint is only used for the same csv file (same size and
+// modification time). The file is replaced atomically, so it always contains a complete cursor. The cursor
+// only survives a crash if the committed rows were durable when it was saved, see CsvImportPipeline.
+public class CsvImportCheckpoint {
+
+	public static final String EXTENSION = "import"; //$NON-NLS-1$
+	public static final int MAGIC = 0x47504943;
+	public static final long UNKNOWN_POSITION = -1L; // Cursor in the middle of a batch, reading continues by skipping rows
+
+	private final File file;
+	private final File csvFile;
+	private long csvSize = -1;
+	private long csvModified = -1;
+	private long position = 0;
+	private long rowNumber = 0;
+	private long rowCount = 0;
+	private long importedCount = 0;
+	private long errorCount = 0;
+
+	public CsvImportCheckpoint(File file, File csvFile) {
+		this.file = file;
+		this.csvFile = csvFile;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public File getCsvFile() {
+		return csvFile;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	// Number of the last committed row in the file (including skipped rows)
+	public long getRowNumber() {
+		return rowNumber;
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public long getImportedCount() {
+		return importedCount;
+	}
+
+	public long getErrorCount() {
+		return errorCount;
+	}
+
+	// Returns true if the checkpoint file contains a cursor for the current version of the csv file
+	public boolean load() {
+
+		reset();
+
+		if (!file.isFile()) {
+			return false;
+		}
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+
+			if (in.readInt() != MAGIC || !csvFile.getAbsolutePath().equals(in.readUTF())) {
+				return false;
+			}
+
+			long csvSize = in.readLong();
+			long csvModified = in.readLong();
+			if (csvSize != csvFile.length() || csvModified != csvFile.lastModified()) {
+				return false;
+			}
+
+			this.csvSize = csvSize;
+			this.csvModified = csvModified;
+			position = in.readLong();
+			rowNumber = in.readLong();
+			rowCount = in.readLong();
+			importedCount = in.readLong();
+			errorCount = in.readLong();
+
+			return true;
+
+		} catch (IOException e) {
+			reset();
+			return false; // Damaged checkpoint, the import has to start again
+		}
+
+	}
+
+	public boolean isResumable() {
+		return csvSize >= 0 && rowNumber > 0;
+	}
+
+	public void save(long position, long rowNumber, long rowCount, long importedCount, long errorCount) throws IOException {
+
+		if (csvSize < 0) {
+			csvSize = csvFile.length();
+			csvModified = csvFile.lastModified();
+		}
+
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp"); //$NON-NLS-1$
+
+		try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+
+			DataOutputStream out = new DataOutputStream(fileOut);
+			out.writeInt(MAGIC);
+			out.writeUTF(csvFile.getAbsolutePath());
+			out.writeLong(csvSize);
+			out.writeLong(csvModified);
+			out.writeLong(position);
+			out.writeLong(rowNumber);
+			out.writeLong(rowCount);
+			out.writeLong(importedCount);
+			out.writeLong(errorCount);
+			out.flush();
+
+			// The cursor must not be ahead of the committed rows after a crash
+			fileOut.getFD().sync();
+
+		}
+
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		this.position = position;
+		this.rowNumber = rowNumber;
+		this.rowCount = rowCount;
+		this.importedCount = importedCount;
+		this.errorCount = errorCount;
+
+	}
+
+	public void delete() {
+		reset();
+		file.delete();
+	}
+
+	private void reset() {
+		csvSize = -1;
+		csvModified = -1;
+		position = 0;
+		rowNumber = 0;
+		rowCount = 0;
+		importedCount = 0;
+		errorCount = 0;
+	}
+
+	public static File getCheckpointFile(File dir, File csvFile) {
+		return new File(dir, csvFile.getName() + "." + EXTENSION); //$NON-NLS-1$
+	}
+
+}
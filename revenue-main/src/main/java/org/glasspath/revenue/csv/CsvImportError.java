@@ -0,0 +1,66 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+public class CsvImportError {
+
+	private final long rowNumber;
+	private final int fieldIndex;
+	private final String fieldName;
+	private final String value;
+	private final Exception exception;
+
+	public CsvImportError(long rowNumber, int fieldIndex, String fieldName, String value, Exception exception) {
+		this.rowNumber = rowNumber;
+		this.fieldIndex = fieldIndex;
+		this.fieldName = fieldName;
+		this.value = value;
+		this.exception = exception;
+	}
+
+	// Row number in the file (starting at 1, header rows included)
+	public long getRowNumber() {
+		return rowNumber;
+	}
+
+	public int getFieldIndex() {
+		return fieldIndex;
+	}
+
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public Exception getException() {
+		return exception;
+	}
+
+	public String getMessage() {
+		return rowNumber + ": " + fieldName + " = " + value + " (" + exception + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+
+}
@@ -0,0 +1,603 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.glasspath.common.Common;
+
+// Imports a csv file in three stages: a reader thread reads batches of rows, a conversion thread converts the
+// values (CsvField.convert()) and the thread calling run() imports the converted rows. The stages are connected
+// by bounded queues, when importing is slower than reading the reader waits, so memory use doesn't depend
+// on the size of the file. With a parallelism above 1 the batches are converted on a fork-join pool, the
+// rows are still imported in the order of the file. Rows with a value which can't be converted are not
+// imported, they are reported as errors. Every batch is imported as a transaction (CsvImporter.beginBatch()
+// and commitBatch()) if the importer can roll back a batch (CsvImporter.supportsRollback()), otherwise the rows
+// before a failed row stay imported and the cursor is moved to the failed row. With a checkpoint the cursor is
+// saved so a cancelled or failed import can be resumed by running a new pipeline with the same checkpoint, or
+// discarded with rollback(). The cursor is saved after every batch if the importer commits durably
+// (CsvImporter.isCommitDurable()), otherwise only when the import stops, the committed rows are then only in
+// memory and a crash loses them together with the cursor.
+public class CsvImportPipeline {
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final int DEFAULT_QUEUE_CAPACITY = 4;
+	public static final int DEFAULT_PARALLELISM = 1;
+	public static final int MAX_ERRORS = 1000;
+
+	private static final int CONVERT_CHUNK_SIZE = 64;
+	private static final Batch END = new Batch(0, null, 0);
+
+	private final CsvImporter importer;
+	private final CsvRowSource source;
+	private final int[] fieldColumns;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private int skipRows = 0;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private ProgressListener progressListener = null;
+	private CsvImportCheckpoint checkpoint = null;
+	private boolean resumed = false;
+	private boolean cursorPending = false;
+	private long cursorPosition = 0;
+	private long cursorRowNumber = 0;
+	private volatile boolean cancelled = false;
+	private volatile Exception exception = null;
+	private long rowCount = 0;
+	private long importedCount = 0;
+	private long errorCount = 0;
+	private final List<CsvImportError> errors = new ArrayList<>();
+
+	// fieldColumns contains the column index for every field of the importer, or -1 if the field is not imported
+	public CsvImportPipeline(CsvImporter importer, CsvRowSource source, int[] fieldColumns) {
+		this.importer = importer;
+		this.source = source;
+		this.fieldColumns = fieldColumns;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getSkipRows() {
+		return skipRows;
+	}
+
+	public void setSkipRows(int skipRows) {
+		this.skipRows = skipRows;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public ProgressListener getProgressListener() {
+		return progressListener;
+	}
+
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	public CsvImportCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	public void setCheckpoint(CsvImportCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	// True if run() continued at the cursor of the checkpoint
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public long getImportedCount() {
+		return importedCount;
+	}
+
+	public long getErrorCount() {
+		return errorCount;
+	}
+
+	// Only the first MAX_ERRORS errors are kept
+	public List<CsvImportError> getErrors() {
+		return errors;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public void run() throws IOException {
+
+		// Rebuilt on first use, also contains the rows committed before the import was resumed
+		importer.resetDuplicateIndex();
+
+		if (checkpoint != null) {
+
+			resumed = checkpoint.load() && checkpoint.isResumable();
+			if (resumed) {
+
+				rowCount = checkpoint.getRowCount();
+				importedCount = checkpoint.getImportedCount();
+				errorCount = checkpoint.getErrorCount();
+
+				// The cursor is kept in memory until the import stops, after a crash the file must not point past rows which were lost
+				if (!importer.isCommitDurable()) {
+					cursorPosition = checkpoint.getPosition();
+					cursorRowNumber = checkpoint.getRowNumber();
+					cursorPending = true;
+					checkpoint.getFile().delete();
+				}
+
+			} else {
+				checkpoint.delete(); // Written for an other version of the file
+			}
+
+		}
+
+		final BlockingQueue<Batch> readQueue = new ArrayBlockingQueue<>(queueCapacity);
+		final BlockingQueue<Batch> convertQueue = new ArrayBlockingQueue<>(queueCapacity);
+		final ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+
+		Thread readerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				read(readQueue);
+			}
+		}, "Csv import reader"); //$NON-NLS-1$
+
+		Thread converterThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				convert(readQueue, convertQueue, pool);
+			}
+		}, "Csv import converter"); //$NON-NLS-1$
+
+		readerThread.setDaemon(true);
+		converterThread.setDaemon(true);
+
+		readerThread.start();
+		converterThread.start();
+
+		try {
+
+			Batch batch;
+			while (!cancelled && exception == null && (batch = convertQueue.take()) != END) {
+				commit(batch);
+			}
+
+		} catch (InterruptedException e) {
+			cancelled = true;
+			Thread.currentThread().interrupt();
+		} catch (IOException | RuntimeException e) {
+			fail(e);
+		} finally {
+
+			// Stops the other stages if they are waiting for a queue
+			if (cancelled || exception != null) {
+				readerThread.interrupt();
+				converterThread.interrupt();
+			}
+
+			join(readerThread);
+			join(converterThread);
+
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+
+		}
+
+		if (cursorPending && (cancelled || exception != null)) {
+			try {
+				checkpoint.save(cursorPosition, cursorRowNumber, rowCount, importedCount, errorCount);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		if (exception instanceof IOException) {
+			throw (IOException) exception;
+		} else if (exception != null) {
+			throw new IOException(exception);
+		} else if (!cancelled && checkpoint != null) {
+			checkpoint.delete();
+		}
+
+	}
+
+	// Discards a cancelled or failed import (also one which was cancelled in a previous session) instead of resuming it,
+	// returns false if the importer can't remove the imported rows (CsvImporter.supportsRollback()), only the
+	// checkpoint is discarded then and the rows which were imported stay in the project
+	public boolean rollback() {
+
+		boolean rolledBack = importer.supportsRollback();
+		if (rolledBack) {
+			importer.rollbackImport();
+		}
+
+		if (checkpoint != null) {
+			checkpoint.delete();
+		}
+
+		rowCount = 0;
+		importedCount = 0;
+		errorCount = 0;
+		errors.clear();
+
+		return rolledBack;
+
+	}
+
+	private void read(BlockingQueue<Batch> readQueue) {
+
+		try {
+
+			long rowNumber = 0;
+
+			if (resumed) {
+
+				if (checkpoint.getPosition() != CsvImportCheckpoint.UNKNOWN_POSITION && source.seek(checkpoint.getPosition())) {
+					rowNumber = checkpoint.getRowNumber();
+				} else {
+					while (rowNumber < checkpoint.getRowNumber() && source.readRow() != null) {
+						rowNumber++;
+					}
+				}
+
+			} else {
+
+				for (int i = 0; i < skipRows && source.readRow() != null; i++) {
+					rowNumber++;
+				}
+
+			}
+
+			List<String[]> rows = new ArrayList<>(batchSize);
+			long firstRowNumber = rowNumber + 1;
+
+			String[] row;
+			while (!cancelled && (row = source.readRow()) != null) {
+
+				rows.add(row);
+				rowNumber++;
+
+				if (rows.size() == batchSize) {
+					readQueue.put(new Batch(firstRowNumber, rows, source.getPosition()));
+					rows = new ArrayList<>(batchSize);
+					firstRowNumber = rowNumber + 1;
+				}
+
+			}
+
+			if (rows.size() > 0) {
+				readQueue.put(new Batch(firstRowNumber, rows, source.getPosition()));
+			}
+
+		} catch (InterruptedException e) {
+			return;
+		} catch (Exception e) {
+			fail(e);
+		} finally {
+
+			try {
+				source.close();
+			} catch (IOException e) {
+				Common.LOGGER.error("Exception while closing csv file", e); //$NON-NLS-1$
+			}
+
+		}
+
+		put(readQueue, END);
+
+	}
+
+	private void convert(BlockingQueue<Batch> readQueue, BlockingQueue<Batch> convertQueue, ForkJoinPool pool) {
+
+		try {
+
+			Batch batch;
+			while ((batch = readQueue.take()) != END) {
+
+				if (cancelled || exception != null) {
+					continue; // Keep taking batches so the reader is never blocked
+				}
+
+				batch.values = new Object[batch.rows.size()][];
+				batch.errors = new CsvImportError[batch.rows.size()];
+
+				if (pool != null) {
+
+					// Not waiting for the result, the next batches are converted at the same time,
+					// the import stage waits for the batches in the order of the queue
+					batch.task = pool.submit(new ConvertTask(batch, 0, batch.rows.size()));
+
+				} else {
+
+					for (int i = 0; i < batch.rows.size(); i++) {
+						convertRow(batch, i);
+					}
+
+				}
+
+				convertQueue.put(batch);
+
+			}
+
+		} catch (InterruptedException e) {
+			return;
+		} catch (Exception e) {
+			fail(e);
+		}
+
+		put(convertQueue, END);
+
+	}
+
+	private void convertRow(Batch batch, int index) {
+
+		String[] row = batch.rows.get(index);
+		Object[] values = new Object[fieldColumns.length];
+
+		for (int fieldIndex = 0; fieldIndex < fieldColumns.length; fieldIndex++) {
+
+			int column = fieldColumns[fieldIndex];
+			if (column >= 0 && column < row.length) {
+
+				CsvField field = importer.getField(fieldIndex);
+
+				try {
+					values[fieldIndex] = field.convert(row[column]);
+				} catch (Exception e) {
+					batch.errors[index] = new CsvImportError(batch.firstRowNumber + index, fieldIndex, field.getName(), row[column], e);
+					return;
+				}
+
+			}
+
+		}
+
+		batch.values[index] = values;
+
+	}
+
+	private void commit(Batch batch) throws IOException {
+
+		if (batch.task != null) {
+			batch.task.join();
+		}
+
+		batch.rows = null;
+
+		long batchRowCount = rowCount;
+		long batchImportedCount = importedCount;
+		long batchErrorCount = errorCount;
+		int batchErrors = errors.size();
+
+		importer.beginBatch();
+
+		int i = 0;
+
+		try {
+
+			for (; i < batch.values.length; i++) {
+
+				Object[] values = batch.values[i];
+				if (values == null) {
+
+					errorCount++;
+					if (errors.size() < MAX_ERRORS) {
+						errors.add(batch.errors[i]);
+					}
+
+					rowCount++;
+
+					continue;
+
+				}
+
+				importer.startRow();
+
+				for (int fieldIndex = 0; fieldIndex < fieldColumns.length; fieldIndex++) {
+					if (fieldColumns[fieldIndex] >= 0) {
+						importer.getField(fieldIndex).importField(values[fieldIndex]);
+					}
+				}
+
+				if (importer.finishRow()) {
+					importedCount++;
+				}
+
+				rowCount++;
+
+			}
+
+			importer.commitBatch();
+
+		} catch (RuntimeException e) {
+
+			if (importer.supportsRollback()) {
+
+				importer.rollbackBatch();
+
+				// The cursor stays at the end of the previous batch, resuming starts with this batch again
+				rowCount = batchRowCount;
+				importedCount = batchImportedCount;
+				errorCount = batchErrorCount;
+				errors.subList(batchErrors, errors.size()).clear();
+
+			} else {
+
+				// The rows before the failed row can't be discarded, they are committed and resuming starts with the
+				// failed row (if commitBatch() failed all rows of the batch were imported)
+				long position = batch.position;
+				if (i < batch.values.length) {
+					importer.commitBatch();
+					position = CsvImportCheckpoint.UNKNOWN_POSITION;
+				}
+
+				try {
+					saveCursor(position, batch.firstRowNumber + i - 1);
+				} catch (IOException e2) {
+					e.addSuppressed(e2);
+				}
+
+			}
+
+			throw e;
+
+		}
+
+		saveCursor(batch.position, batch.firstRowNumber + batch.values.length - 1);
+
+		if (progressListener != null) {
+			progressListener.importProgress(rowCount, importedCount, errorCount, batch.position, source.getSize());
+		}
+
+	}
+
+	private void saveCursor(long position, long rowNumber) throws IOException {
+		if (checkpoint != null) {
+			if (importer.isCommitDurable()) {
+				checkpoint.save(position, rowNumber, rowCount, importedCount, errorCount);
+			} else {
+				cursorPosition = position;
+				cursorRowNumber = rowNumber;
+				cursorPending = true;
+			}
+		}
+	}
+
+	// Only the first exception is kept, the exceptions of the other stages are caused by stopping them
+	private synchronized void fail(Exception e) {
+		if (exception == null && !cancelled) {
+			exception = e;
+		}
+	}
+
+	private static void put(BlockingQueue<Batch> queue, Batch batch) {
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			// Import was cancelled
+		}
+	}
+
+	private static void join(Thread thread) {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Batch {
+
+		private final long firstRowNumber;
+		private final long position;
+		private List<String[]> rows;
+		private Object[][] values = null;
+		private CsvImportError[] errors = null;
+		private ForkJoinTask<?> task = null;
+
+		private Batch(long firstRowNumber, List<String[]> rows, long position) {
+			this.firstRowNumber = firstRowNumber;
+			this.rows = rows;
+			this.position = position;
+		}
+
+	}
+
+	private class ConvertTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Batch batch;
+		private final int start;
+		private final int end;
+
+		private ConvertTask(Batch batch, int start, int end) {
+			this.batch = batch;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (end - start <= CONVERT_CHUNK_SIZE) {
+				for (int i = start; i < end; i++) {
+					convertRow(batch, i);
+				}
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new ConvertTask(batch, start, middle), new ConvertTask(batch, middle, end));
+			}
+
+		}
+
+	}
+
+	public static interface ProgressListener {
+
+		// Called on the thread which imports the rows, after every batch
+		public void importProgress(long rowCount, long importedCount, long errorCount, long position, long size);
+
+	}
+
+}
@@ -22,14 +22,15 @@
  */
 package org.glasspath.revenue.csv;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 import javax.swing.JCheckBox;
 
-import org.glasspath.common.date.DateUtils;
 import org.glasspath.common.date.Time;
 import org.glasspath.common.format.FormatUtils;
 import org.glasspath.common.swing.resources.CommonResources;
@@ -67,7 +68,21 @@ public abstract class CsvImporter {
 			{ "^\\d{1,2}\\s[a-z]{4,}\\s\\d{4}\\s\\d{1,2}:\\d{2}:\\d{2}$", "dd MMMM yyyy HH:mm:ss" }, //$NON-NLS-1$ //$NON-NLS-2$
 	};
 
+	private static final CsvDateParser DATE_PARSER = new CsvDateParser();
+
+	private static volatile CsvNumberParser numberParser = null;
+
+	// Used by the boxed getters, so they don't create a result for every value
+	private static final ThreadLocal<CsvNumberParser.Result> RESULT = new ThreadLocal<CsvNumberParser.Result>() {
+
+		@Override
+		protected CsvNumberParser.Result initialValue() {
+			return new CsvNumberParser.Result();
+		}
+	};
+
 	private final List<CsvField> fields;
+	private CsvDuplicateIndex duplicateIndex = null;
 
 	public CsvImporter() {
 		this.fields = createFields();
@@ -85,6 +100,40 @@ public abstract class CsvImporter {
 
 	public abstract boolean finishRow();
 
+	// Rows imported by CsvImportPipeline are committed in batches, importers which keep the imported items
+	// until commitBatch() is called make the batch and the import cursor (CsvImportCheckpoint) consistent
+	public void beginBatch() {
+
+	}
+
+	public void commitBatch() {
+
+	}
+
+	// Called when a row of the batch threw an exception and supportsRollback() is true, the rows since beginBatch()
+	// must be discarded. Otherwise commitBatch() is called for the rows before the failed row.
+	public void rollbackBatch() {
+
+	}
+
+	// Called when a cancelled or failed import is discarded instead of resumed, importers remove the
+	// items which were committed by the import
+	public void rollbackImport() {
+
+	}
+
+	// True if rollbackBatch() and rollbackImport() are implemented, otherwise batches are not atomic (a failed
+	// import resumes at the failed row) and the rows of a discarded import stay in the project
+	public boolean supportsRollback() {
+		return false;
+	}
+
+	// True if commitBatch() makes the rows durable (for example with ContentStore.record()) before it returns,
+	// only then the checkpoint is written after every batch and survives a crash of the application
+	public boolean isCommitDurable() {
+		return false;
+	}
+
 	public List<CsvField> getFields() {
 		return fields;
 	}
@@ -101,82 +150,132 @@ public abstract class CsvImporter {
 		return fields.get(fieldIndex).getName();
 	}
 
-	public static Integer getInteger(Object value) {
+	// Reads only the start of the file and a sample of rows, the suggested column of every field is
+	// returned by CsvPreview.suggestFieldColumns()
+	public CsvPreview createPreview(File file, char separator, Charset charset) throws IOException {
+		return CsvPreview.read(file, separator, charset);
+	}
 
-		if (value != null) {
+	// True if one of the check for existing items options of the importer is selected
+	public boolean isCheckForExistingItems() {
 
-			try {
-				return Integer.parseInt(value.toString());
-			} catch (Exception e) {
-				// TODO?
-			}
+		JCheckBox checkBox1 = getCheckForExistingItemsCheckBox1();
+		JCheckBox checkBox2 = getCheckForExistingItemsCheckBox2();
+
+		return (checkBox1 != null && checkBox1.isSelected()) || (checkBox2 != null && checkBox2.isSelected());
 
+	}
+
+	// The index of the existing items is built once (on first use), checking a row for an existing item is
+	// then a lookup of the key of the row instead of a scan over all items of the project. Returns null if
+	// the check for existing items options are not selected.
+	public CsvDuplicateIndex getDuplicateIndex() {
+
+		if (!isCheckForExistingItems()) {
+			return null;
 		}
 
-		return null;
+		if (duplicateIndex == null) {
+			duplicateIndex = new CsvDuplicateIndex();
+			indexExistingItems(duplicateIndex);
+		}
+
+		return duplicateIndex;
 
 	}
 
-	public static Float getFloat(Object value) {
+	// Importers which check for existing items add the keys of the existing items here, the selected options
+	// (getCheckForExistingItemsCheckBox1() and 2) determine which items are indexed
+	protected void indexExistingItems(CsvDuplicateIndex index) {
 
-		if (value != null) {
+	}
 
-			try {
-				return FormatUtils.DECIMAL_FORMAT.parse(value.toString()).floatValue();
-			} catch (Exception e) {
-				// TODO?
-			}
+	// Used by finishRow() of importers, returns true if the item exists in the project or was already imported from
+	// the file (the key is added to the index), always false if the check for existing items options are not selected
+	protected boolean isExistingItem(CsvDuplicateIndex.Key key) {
+		CsvDuplicateIndex index = getDuplicateIndex();
+		return index != null && !index.add(key);
+	}
+
+	// Called when an import starts, the options may have changed and the items of a previous import must be indexed
+	public void resetDuplicateIndex() {
+		duplicateIndex = null;
+	}
+
+	public static CsvNumberParser getNumberParser() {
 
+		CsvNumberParser parser = numberParser;
+		if (parser == null) {
+			parser = new CsvNumberParser(FormatUtils.DECIMAL_FORMAT);
+			numberParser = parser;
 		}
 
-		return null;
+		return parser;
 
 	}
 
-	public static Long getLong(Object value) {
+	public static void setNumberParser(CsvNumberParser numberParser) {
+		CsvImporter.numberParser = numberParser;
+	}
 
-		if (value != null) {
+	// Called by the caller which applies the regional settings, so amounts are parsed with the separators of the selected language
+	public static void setLocale(Locale locale) {
+		setNumberParser(CsvNumberParser.create(locale));
+	}
 
-			try {
-				return Long.parseLong(value.toString());
-			} catch (Exception e) {
-				// TODO?
-			}
+	public static Integer getInteger(Object value) {
 
+		CsvNumberParser.Result result = RESULT.get();
+		if (value != null && getNumberParser().parseInt(value.toString(), result)) {
+			return result.getInt();
 		}
 
 		return null;
 
 	}
 
-	public static Date getDate(Object value) {
+	public static Float getFloat(Object value) {
 
-		if (value != null) {
+		CsvNumberParser.Result result = RESULT.get();
+		if (value != null && getNumberParser().parseDouble(value.toString(), result)) {
+			return result.getFloat();
+		}
 
-			try {
+		return null;
 
-				String s = value.toString().toLowerCase();
-				for (String[] dateFormat : DATE_FORMATS) {
+	}
 
-					if (s.matches(dateFormat[0])) {
+	public static Long getLong(Object value) {
 
-						DateFormat format = new SimpleDateFormat(dateFormat[1]);
-						format.setTimeZone(DateUtils.GMT_TIME_ZONE);
+		CsvNumberParser.Result result = RESULT.get();
+		if (value != null && getNumberParser().parseLong(value.toString(), result)) {
+			return result.getLong();
+		}
 
-						return format.parse(s);
+		return null;
 
-					}
+	}
 
-				}
+	// Primitive versions for the import hot path, the result holder can be reused for every value
+	public static boolean getInteger(Object value, CsvNumberParser.Result result) {
+		return value != null && getNumberParser().parseInt(value.toString(), result);
+	}
 
-			} catch (Exception e) {
-				// TODO?
-			}
+	public static boolean getFloat(Object value, CsvNumberParser.Result result) {
+		return value != null && getNumberParser().parseDouble(value.toString(), result);
+	}
 
-		}
+	public static boolean getLong(Object value, CsvNumberParser.Result result) {
+		return value != null && getNumberParser().parseLong(value.toString(), result);
+	}
 
-		return null;
+	public static Date getDate(Object value) {
+		return DATE_PARSER.parse(value);
+	}
 
+	// Importers with more than one date column should use a parser per column, so the format is only detected once
+	public static Date getDate(Object value, CsvDateParser dateParser) {
+		return dateParser.parse(value);
 	}
 
 	public static Time getTime(Object value) {
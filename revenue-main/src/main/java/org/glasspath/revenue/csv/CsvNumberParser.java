@@ -0,0 +1,244 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.ParsePosition;
+import java.util.Locale;
+
+// Parses numbers without creating objects or throwing exceptions, the result is stored in a Result which can
+// be reused for every value. Plain numbers (digits, grouping separators, one decimal separator) are parsed
+// directly, anything else is passed to a DecimalFormat so the result is the same as with DecimalFormat.parse().
+public class CsvNumberParser {
+
+	private static final int MAX_FAST_DIGITS = 15; // Below 2^53, so the digits fit in a double exactly
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final char decimalSeparator;
+	private final char groupingSeparator;
+	private final char minusSign;
+	private final DecimalFormat fallbackFormat;
+
+	public CsvNumberParser(DecimalFormat decimalFormat) {
+
+		DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+
+		this.decimalSeparator = symbols.getDecimalSeparator();
+		this.groupingSeparator = decimalFormat.isGroupingUsed() ? symbols.getGroupingSeparator() : decimalSeparator;
+		this.minusSign = symbols.getMinusSign();
+		this.fallbackFormat = (DecimalFormat) decimalFormat.clone();
+
+	}
+
+	public static CsvNumberParser create(Locale locale) {
+		return new CsvNumberParser(new DecimalFormat("#,##0.###", DecimalFormatSymbols.getInstance(locale))); //$NON-NLS-1$
+	}
+
+	public char getDecimalSeparator() {
+		return decimalSeparator;
+	}
+
+	public char getGroupingSeparator() {
+		return groupingSeparator;
+	}
+
+	public boolean parseDouble(CharSequence s, Result result) {
+		return parseDouble(s, result, false);
+	}
+
+	// In strict mode only plain numbers are accepted, DecimalFormat also accepts "12 hours" (as 12)
+	public boolean parseDouble(CharSequence s, Result result, boolean strict) {
+
+		int length = s != null ? s.length() : 0;
+		if (length == 0) {
+			return false;
+		}
+
+		int i = 0;
+		boolean negative = false;
+		if (s.charAt(0) == minusSign) {
+			negative = true;
+			i++;
+		}
+
+		long digits = 0;
+		int digitCount = 0;
+		int scale = 0;
+		boolean decimal = false;
+
+		for (; i < length; i++) {
+
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+
+				digits = digits * 10 + (c - '0');
+				digitCount++;
+				if (decimal) {
+					scale++;
+				}
+
+				if (digitCount > MAX_FAST_DIGITS || scale >= POWERS_OF_TEN.length) {
+					return parseWithFallback(s, result); // Plain number, but too long for the fast path
+				}
+
+			} else if (c == decimalSeparator && !decimal) {
+				decimal = true;
+			} else if (c == groupingSeparator && !decimal) {
+				continue;
+			} else {
+				return !strict && parseWithFallback(s, result);
+			}
+
+		}
+
+		if (digitCount == 0) {
+			return !strict && parseWithFallback(s, result); // Only a sign or separators
+		}
+
+		// Both numbers are exact, so the division gives the nearest double (like DecimalFormat)
+		double value = scale == 0 ? digits : digits / POWERS_OF_TEN[scale];
+
+		result.doubleValue = negative ? -value : value;
+		result.longValue = (long) result.doubleValue;
+
+		return true;
+
+	}
+
+	private boolean parseWithFallback(CharSequence s, Result result) {
+
+		ParsePosition position = new ParsePosition(0);
+
+		Number number;
+		synchronized (fallbackFormat) {
+			number = fallbackFormat.parse(s.toString(), position);
+		}
+
+		if (number == null) {
+			return false;
+		}
+
+		result.doubleValue = number.doubleValue();
+		result.longValue = number.longValue();
+
+		return true;
+
+	}
+
+	// Same rules as Long.parseLong(): an optional sign followed by digits only
+	public boolean parseLong(CharSequence s, Result result) {
+		return parseInteger(s, result, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	// Same rules as Integer.parseInt()
+	public boolean parseInt(CharSequence s, Result result) {
+		return parseInteger(s, result, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	private static boolean parseInteger(CharSequence s, Result result, long min, long max) {
+
+		int length = s != null ? s.length() : 0;
+		if (length == 0) {
+			return false;
+		}
+
+		int i = 0;
+		boolean negative = false;
+
+		char first = s.charAt(0);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			i++;
+			if (length == 1) {
+				return false;
+			}
+		}
+
+		// Accumulated as a negative number, so Long.MIN_VALUE can be parsed
+		long limit = negative ? min : -max;
+		long multiplyLimit = limit / 10;
+		long value = 0;
+
+		for (; i < length; i++) {
+
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				digit = Character.digit(s.charAt(i), 10); // Other unicode digits, like Long.parseLong()
+				if (digit < 0) {
+					return false;
+				}
+			}
+
+			if (value < multiplyLimit) {
+				return false;
+			}
+
+			value *= 10;
+
+			if (value < limit + digit) {
+				return false;
+			}
+
+			value -= digit;
+
+		}
+
+		result.longValue = negative ? value : -value;
+		result.doubleValue = result.longValue;
+
+		return true;
+
+	}
+
+	public static class Result {
+
+		private long longValue = 0;
+		private double doubleValue = 0.0;
+
+		public Result() {
+
+		}
+
+		public long getLong() {
+			return longValue;
+		}
+
+		public int getInt() {
+			return (int) longValue;
+		}
+
+		public double getDouble() {
+			return doubleValue;
+		}
+
+		public float getFloat() {
+			return (float) doubleValue;
+		}
+
+	}
+
+}
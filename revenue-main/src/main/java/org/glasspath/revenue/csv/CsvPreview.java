@@ -0,0 +1,328 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Preview of a csv file for choosing the column mapping, only the first rows and a sample of rows spread over
+// the file are read (the sampled rows are found by jumping to random positions in the file). The type and date
+// format of every column are guessed from these rows.
+public class CsvPreview {
+
+	public static final int TYPE_EMPTY = 0;
+	public static final int TYPE_TEXT = 1;
+	public static final int TYPE_INTEGER = 2;
+	public static final int TYPE_DECIMAL = 3;
+	public static final int TYPE_DATE = 4;
+
+	public static final int DEFAULT_HEAD_ROWS = 50;
+	public static final int DEFAULT_SAMPLE_ROWS = 200;
+	public static final double MIN_MATCHING_VALUES = 0.9;
+
+	private final List<String[]> headRows = new ArrayList<>();
+	private final List<String[]> sampleRows = new ArrayList<>();
+	private final long fileSize;
+	private int columnCount = 0;
+	private int[] columnTypes = new int[0];
+	private String[] columnDateFormats = new String[0];
+	private int[] columnDateFormatIndexes = new int[0];
+	private boolean header = false;
+
+	private CsvPreview(long fileSize) {
+		this.fileSize = fileSize;
+	}
+
+	public static CsvPreview read(File file, char separator, Charset charset) throws IOException {
+		return read(file, separator, charset, DEFAULT_HEAD_ROWS, DEFAULT_SAMPLE_ROWS, CsvImporter.getNumberParser());
+	}
+
+	public static CsvPreview read(File file, char separator, Charset charset, int headRowCount, int sampleRowCount, CsvNumberParser numberParser) throws IOException {
+
+		try (CsvRowSource source = MappedCsvRowSource.open(file, separator, charset, null)) {
+
+			CsvPreview preview = new CsvPreview(source.getSize());
+
+			String[] row;
+			while (preview.headRows.size() < headRowCount && (row = source.readRow()) != null) {
+				preview.headRows.add(row);
+				preview.columnCount = Math.max(preview.columnCount, row.length);
+			}
+
+			long headEnd = source.getPosition();
+
+			// Sample rows need random access, which is only supported by MappedCsvRowSource
+			if (source instanceof MappedCsvRowSource && headEnd < source.getSize() && sampleRowCount > 0) {
+
+				MappedCsvRowSource mappedSource = (MappedCsvRowSource) source;
+
+				// Random positions after the first rows, sorted so the file is read from start to end
+				Random random = new Random(source.getSize());
+				long[] positions = new long[sampleRowCount];
+				for (int i = 0; i < positions.length; i++) {
+					positions[i] = headEnd + (long) (random.nextDouble() * (source.getSize() - headEnd));
+				}
+				Arrays.sort(positions);
+
+				long previousRowEnd = headEnd;
+				for (long position : positions) {
+
+					if (position < previousRowEnd) {
+						continue;
+					}
+
+					// The row at the position is usually incomplete, the row after it is used
+					mappedSource.setPosition(position);
+					if (source.readRow() == null || (row = source.readRow()) == null) {
+						break;
+					}
+
+					previousRowEnd = source.getPosition();
+
+					// A position inside a quoted line break gives a broken row, it's recognized by the number of columns
+					if (row.length == preview.columnCount) {
+						preview.sampleRows.add(row);
+					}
+
+				}
+
+			}
+
+			preview.analyze(numberParser);
+
+			return preview;
+
+		}
+
+	}
+
+	private void analyze(CsvNumberParser numberParser) {
+
+		columnTypes = new int[columnCount];
+		columnDateFormats = new String[columnCount];
+		columnDateFormatIndexes = new int[columnCount];
+		Arrays.fill(columnDateFormatIndexes, -1);
+
+		List<String[]> rows = new ArrayList<>(headRows.size() + sampleRows.size());
+		rows.addAll(headRows.subList(Math.min(1, headRows.size()), headRows.size()));
+		rows.addAll(sampleRows);
+
+		CsvNumberParser.Result result = new CsvNumberParser.Result();
+
+		for (int column = 0; column < columnCount; column++) {
+
+			List<String> values = new ArrayList<>();
+			for (String[] row : rows) {
+				if (column < row.length && row[column] != null && row[column].trim().length() > 0) {
+					values.add(row[column].trim());
+				}
+			}
+
+			columnTypes[column] = getType(values, numberParser, result, column);
+
+		}
+
+		// The first row is a header if a value can't be parsed as the type of its column (a name above a column
+		// of numbers or dates), a whole number in a decimal column or an empty value are not a header
+		if (headRows.size() > 0) {
+
+			String[] firstRow = headRows.get(0);
+			for (int column = 0; column < firstRow.length && column < columnCount && !header; column++) {
+
+				String value = firstRow[column] != null ? firstRow[column].trim() : ""; //$NON-NLS-1$
+				if (value.length() > 0) {
+					header = !fitsType(value, column, numberParser, result);
+				}
+
+			}
+
+		}
+
+	}
+
+	private int getType(List<String> values, CsvNumberParser numberParser, CsvNumberParser.Result result, int column) {
+
+		if (values.size() == 0) {
+			return TYPE_EMPTY;
+		}
+
+		CsvDateParser dateParser = new CsvDateParser();
+		if (dateParser.detect(values) >= 0) {
+
+			int dates = 0;
+			for (String value : values) {
+				if (CsvDateParser.DATE_PATTERNS[dateParser.getFormatIndex()].matcher(value.toLowerCase()).matches()) {
+					dates++;
+				}
+			}
+
+			if (dates >= values.size() * MIN_MATCHING_VALUES) {
+				columnDateFormats[column] = dateParser.getFormat();
+				columnDateFormatIndexes[column] = dateParser.getFormatIndex();
+				return TYPE_DATE;
+			}
+
+		}
+
+		int integers = 0;
+		int decimals = 0;
+		for (String value : values) {
+			if (numberParser.parseLong(value, result)) {
+				integers++;
+			} else if (numberParser.parseDouble(value, result, true)) {
+				decimals++;
+			}
+		}
+
+		if (integers == values.size()) {
+			return TYPE_INTEGER;
+		} else if (integers + decimals >= values.size() * MIN_MATCHING_VALUES) {
+			return TYPE_DECIMAL;
+		} else {
+			return TYPE_TEXT;
+		}
+
+	}
+
+	private boolean fitsType(String value, int column, CsvNumberParser numberParser, CsvNumberParser.Result result) {
+
+		switch (columnTypes[column]) {
+
+		case TYPE_INTEGER:
+			return numberParser.parseLong(value, result);
+
+		case TYPE_DECIMAL:
+			return numberParser.parseLong(value, result) || numberParser.parseDouble(value, result, true);
+
+		case TYPE_DATE:
+			return CsvDateParser.DATE_PATTERNS[columnDateFormatIndexes[column]].matcher(value.toLowerCase()).matches();
+
+		default:
+			return true; // Text (and empty) columns accept any value
+
+		}
+
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	public boolean hasHeader() {
+		return header;
+	}
+
+	public String getColumnName(int column) {
+		if (header && column < headRows.get(0).length) {
+			return headRows.get(0)[column];
+		} else {
+			return null;
+		}
+	}
+
+	public int getColumnType(int column) {
+		return columnTypes[column];
+	}
+
+	// Returns the date format (see CsvImporter.DATE_FORMATS) for date columns, null for other columns
+	public String getColumnDateFormat(int column) {
+		return columnDateFormats[column];
+	}
+
+	// First rows of the file, including the header
+	public List<String[]> getHeadRows() {
+		return headRows;
+	}
+
+	public List<String[]> getSampleRows() {
+		return sampleRows;
+	}
+
+	// Returns the column for every field of the importer (or -1), columns are matched by name
+	public int[] suggestFieldColumns(CsvImporter importer) {
+
+		int[] fieldColumns = new int[importer.getFieldCount()];
+		Arrays.fill(fieldColumns, -1);
+
+		if (!header) {
+			return fieldColumns;
+		}
+
+		boolean[] usedColumns = new boolean[columnCount];
+
+		// Equal names first, then names which contain the field name (like "Date (dd-mm-yyyy)")
+		for (int pass = 0; pass < 2; pass++) {
+
+			for (int fieldIndex = 0; fieldIndex < fieldColumns.length; fieldIndex++) {
+
+				String fieldName = normalize(importer.getFieldName(fieldIndex));
+				if (fieldColumns[fieldIndex] >= 0 || fieldName.length() == 0) {
+					continue;
+				}
+
+				for (int column = 0; column < columnCount; column++) {
+
+					String columnName = normalize(getColumnName(column));
+					if (!usedColumns[column] && (pass == 0 ? columnName.equals(fieldName) : columnName.contains(fieldName))) {
+						fieldColumns[fieldIndex] = column;
+						usedColumns[column] = true;
+						break;
+					}
+
+				}
+
+			}
+
+		}
+
+		return fieldColumns;
+
+	}
+
+	private static String normalize(String name) {
+
+		StringBuilder normalized = new StringBuilder();
+
+		if (name != null) {
+			for (int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				if (Character.isLetterOrDigit(c)) {
+					normalized.append(Character.toLowerCase(c));
+				}
+			}
+		}
+
+		return normalized.toString();
+
+	}
+
+}
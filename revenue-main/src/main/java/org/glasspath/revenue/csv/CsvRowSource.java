@@ -0,0 +1,42 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface CsvRowSource extends Closeable {
+
+	// Returns null when there are no more rows
+	public String[] readRow() throws IOException;
+
+	// Position and size are used for showing progress, they don't have to be in the same unit as the rows
+	public long getPosition();
+
+	public long getSize();
+
+	// Continues reading at a position returned by getPosition() after a row was read, returns false if
+	// the source doesn't support this (reading then has to continue by skipping rows)
+	public boolean seek(long position) throws IOException;
+
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Imported rows in columns of primitives (strings are stored once, rows contain the index of the string), so
+// a large import doesn't create an object per value. Rows are staged here, checked for duplicates and then
+// added to the content by the importer.
+public class CsvStagingBuffer {
+
+	public static final int TYPE_LONG = 0;
+	public static final int TYPE_DOUBLE = 1;
+	public static final int TYPE_STRING = 2;
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private final List<String> columnNames = new ArrayList<>();
+	private final List<Integer> columnTypes = new ArrayList<>();
+	private final List<long[]> longColumns = new ArrayList<>();
+	private final List<double[]> doubleColumns = new ArrayList<>();
+	private final List<int[]> stringColumns = new ArrayList<>();
+	private final List<Integer> columnIndexes = new ArrayList<>();
+	private final Map<String, Integer> stringIndexes = new HashMap<>();
+	private final List<String> strings = new ArrayList<>();
+	private int capacity = DEFAULT_CAPACITY;
+	private int size = 0;
+
+	public CsvStagingBuffer() {
+
+	}
+
+	public int addColumn(String name, int type) {
+
+		columnNames.add(name);
+		columnTypes.add(type);
+
+		if (type == TYPE_LONG) {
+			columnIndexes.add(longColumns.size());
+			longColumns.add(new long[capacity]);
+		} else if (type == TYPE_DOUBLE) {
+			columnIndexes.add(doubleColumns.size());
+			doubleColumns.add(new double[capacity]);
+		} else {
+			columnIndexes.add(stringColumns.size());
+			stringColumns.add(new int[capacity]);
+		}
+
+		return columnNames.size() - 1;
+
+	}
+
+	public int getColumnCount() {
+		return columnNames.size();
+	}
+
+	public String getColumnName(int column) {
+		return columnNames.get(column);
+	}
+
+	public int getColumnType(int column) {
+		return columnTypes.get(column);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Returns the index of the new row, all values of the row are 0 (or null for strings)
+	public int addRow() {
+
+		if (size == capacity) {
+
+			capacity *= 2;
+
+			for (int i = 0; i < longColumns.size(); i++) {
+				longColumns.set(i, Arrays.copyOf(longColumns.get(i), capacity));
+			}
+			for (int i = 0; i < doubleColumns.size(); i++) {
+				doubleColumns.set(i, Arrays.copyOf(doubleColumns.get(i), capacity));
+			}
+			for (int i = 0; i < stringColumns.size(); i++) {
+				stringColumns.set(i, Arrays.copyOf(stringColumns.get(i), capacity));
+			}
+
+		}
+
+		for (int[] stringColumn : stringColumns) {
+			stringColumn[size] = -1;
+		}
+
+		return size++;
+
+	}
+
+	public void setLong(int column, int row, long value) {
+		longColumns.get(columnIndexes.get(column))[row] = value;
+	}
+
+	public long getLong(int column, int row) {
+		return longColumns.get(columnIndexes.get(column))[row];
+	}
+
+	public void setDouble(int column, int row, double value) {
+		doubleColumns.get(columnIndexes.get(column))[row] = value;
+	}
+
+	public double getDouble(int column, int row) {
+		return doubleColumns.get(columnIndexes.get(column))[row];
+	}
+
+	public void setString(int column, int row, String value) {
+
+		int stringIndex = -1;
+
+		if (value != null) {
+			Integer index = stringIndexes.get(value);
+			if (index == null) {
+				index = strings.size();
+				strings.add(value);
+				stringIndexes.put(value, index);
+			}
+			stringIndex = index;
+		}
+
+		stringColumns.get(columnIndexes.get(column))[row] = stringIndex;
+
+	}
+
+	public String getString(int column, int row) {
+		int stringIndex = stringColumns.get(columnIndexes.get(column))[row];
+		return stringIndex >= 0 ? strings.get(stringIndex) : null;
+	}
+
+	// Must give the same key as the importer creates for existing items (see CsvDuplicateIndex.Key), double
+	// columns are amounts and are compared in minor units
+	public CsvDuplicateIndex.Key getKey(int row, int... keyColumns) {
+
+		Object[] values = new Object[keyColumns.length];
+
+		for (int i = 0; i < keyColumns.length; i++) {
+
+			int column = keyColumns[i];
+			int type = columnTypes.get(column);
+			if (type == TYPE_LONG) {
+				values[i] = getLong(column, row);
+			} else if (type == TYPE_DOUBLE) {
+				values[i] = CsvDuplicateIndex.toMinorUnits(getDouble(column, row));
+			} else {
+				values[i] = getString(column, row);
+			}
+
+		}
+
+		return new CsvDuplicateIndex.Key(values);
+
+	}
+
+	// Returns the rows of which the key is in the index, if addKeys is true the keys of the other rows are added
+	// to the index (so duplicate rows within the imported file are found too)
+	public BitSet findDuplicates(CsvDuplicateIndex index, boolean addKeys, int... keyColumns) {
+
+		BitSet duplicates = new BitSet(size);
+
+		for (int row = 0; row < size; row++) {
+
+			CsvDuplicateIndex.Key key = getKey(row, keyColumns);
+			if (addKeys ? !index.add(key) : index.contains(key)) {
+				duplicates.set(row);
+			}
+
+		}
+
+		return duplicates;
+
+	}
+
+	public void clear() {
+
+		size = 0;
+
+		// Strings are kept, the next batch will probably contain the same strings (clients, descriptions)
+		if (strings.size() > DEFAULT_CAPACITY * 16) {
+			strings.clear();
+			stringIndexes.clear();
+		}
+
+	}
+
+}
@@ -0,0 +1,382 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.prefs.Preferences;
+
+import org.glasspath.revenue.preferences.CsvPreferencesPanel;
+
+// Reads a csv file through a memory mapped window of the file, rows are split in the mapped bytes and strings
+// are only created for the columns which are imported. Separators, quotes and line ends are single bytes in
+// all supported charsets (UTF-8 and single byte charsets), so the bytes can be split before decoding. Other
+// charsets (UTF-16, multi byte charsets) are read by OpenCsvRowSource, see open().
+public class MappedCsvRowSource implements CsvRowSource {
+
+	public static final int DEFAULT_WINDOW_SIZE = 128 * 1024 * 1024;
+
+	private static final byte QUOTE = '"';
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	private static final String ASCII_TEST = "\"\r\n\t ,;|:0123456789.-+"; //$NON-NLS-1$
+
+	private static Object unsafe = null;
+	private static Method invokeCleaner = null;
+
+	static {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe"); //$NON-NLS-1$
+			Field field = unsafeClass.getDeclaredField("theUnsafe"); //$NON-NLS-1$
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class); //$NON-NLS-1$
+		} catch (Exception e) {
+			// Windows are released by the garbage collector
+		}
+	}
+
+	private final FileChannel channel;
+	private final long size;
+	private final byte separator;
+	private final Charset charset;
+	private final boolean[] mappedColumns;
+	private final int windowSize;
+	private MappedByteBuffer buffer = null;
+	private long windowStart = 0;
+	private long position = 0;
+	private byte[] fieldBytes = new byte[256];
+	private String[] row = new String[16];
+
+	// columns contains the index of every column which is imported (-1 entries are ignored), or null for all columns
+	public MappedCsvRowSource(File file, char separator, Charset charset, int[] columns) throws IOException {
+		this(file, separator, charset, columns, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedCsvRowSource(File file, char separator, Charset charset, int[] columns, int windowSize) throws IOException {
+
+		if (separator > 127) {
+			throw new IllegalArgumentException("Separator must be an ascii character"); //$NON-NLS-1$
+		} else if (!isSupported(charset)) {
+			throw new IllegalArgumentException("Charset " + charset.name() + " can't be split in bytes, use OpenCsvRowSource"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.size = channel.size();
+		this.separator = (byte) separator;
+		this.charset = charset;
+		this.windowSize = windowSize;
+
+		if (columns != null) {
+
+			int columnCount = 0;
+			for (int column : columns) {
+				columnCount = Math.max(columnCount, column + 1);
+			}
+
+			mappedColumns = new boolean[columnCount];
+			for (int column : columns) {
+				if (column >= 0) {
+					mappedColumns[column] = true;
+				}
+			}
+
+		} else {
+			mappedColumns = null;
+		}
+
+		map(0);
+
+		// UTF-8 byte order mark
+		if (size >= 3 && buffer.get(0) == (byte) 0xEF && buffer.get(1) == (byte) 0xBB && buffer.get(2) == (byte) 0xBF) {
+			position = 3;
+		}
+
+	}
+
+	public static CsvRowSource create(File file, Preferences preferences, Charset charset, int[] columns) throws IOException {
+		return open(file, CsvPreferencesPanel.getCsvSeparator(preferences), charset, columns);
+	}
+
+	// Returns a MappedCsvRowSource if the charset is supported, otherwise an OpenCsvRowSource
+	public static CsvRowSource open(File file, char separator, Charset charset, int[] columns) throws IOException {
+		if (separator <= 127 && isSupported(charset)) {
+			return new MappedCsvRowSource(file, separator, charset, columns);
+		} else {
+			return new OpenCsvRowSource(file, separator, charset);
+		}
+	}
+
+	// True for UTF-8 and for single byte charsets which encode ascii characters as ascii, in these charsets
+	// a byte which is a separator, quote or line end is never part of an other character
+	public static boolean isSupported(Charset charset) {
+
+		if (StandardCharsets.UTF_8.equals(charset)) {
+			return true;
+		} else if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0F) {
+			return false;
+		}
+
+		return Arrays.equals(ASCII_TEST.getBytes(charset), ASCII_TEST.getBytes(StandardCharsets.US_ASCII));
+
+	}
+
+	private void map(long start) throws IOException {
+
+		unmap();
+
+		windowStart = start;
+		buffer = channel.map(MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+
+	}
+
+	// A mapped window is otherwise only released by the garbage collector, until then the file can't be deleted
+	// or replaced on Windows and the window keeps using address space
+	private void unmap() {
+
+		if (buffer != null && invokeCleaner != null) {
+			try {
+				invokeCleaner.invoke(unsafe, buffer);
+			} catch (Exception e) {
+				// Released by the garbage collector
+			}
+		}
+
+		buffer = null;
+
+	}
+
+	@Override
+	public String[] readRow() throws IOException {
+
+		if (position >= size) {
+			return null;
+		}
+
+		while (true) {
+
+			if (position < windowStart || position >= windowStart + buffer.limit()) {
+				map(position);
+			}
+
+			int columnCount = parseRow();
+			if (columnCount >= 0) {
+
+				String[] result = new String[columnCount];
+				System.arraycopy(row, 0, result, 0, columnCount);
+
+				return result;
+
+			}
+
+			// The row continues after the end of the window, the window is moved to the start of the row
+			if (windowStart == position) {
+				throw new IOException("Csv row is larger than " + windowSize + " bytes at position " + position); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+
+			map(position);
+
+		}
+
+	}
+
+	// Returns the number of columns, or -1 if the end of the window was reached before the end of the row
+	private int parseRow() {
+
+		int limit = buffer.limit();
+		boolean lastWindow = windowStart + limit >= size;
+
+		int i = (int) (position - windowStart);
+		int column = 0;
+
+		while (true) {
+
+			int start;
+			int end;
+			boolean escapedQuotes = false;
+
+			if (i < limit && buffer.get(i) == QUOTE) {
+
+				i++;
+				start = i;
+
+				while (true) {
+
+					if (i >= limit) {
+						if (!lastWindow) {
+							return -1;
+						}
+						end = i; // Quote is not closed
+						break;
+					}
+
+					if (buffer.get(i) == QUOTE) {
+
+						if (i + 1 >= limit && !lastWindow) {
+							return -1;
+						} else if (i + 1 < limit && buffer.get(i + 1) == QUOTE) {
+							escapedQuotes = true;
+							i += 2;
+						} else {
+							end = i;
+							i++;
+							break;
+						}
+
+					} else {
+						i++;
+					}
+
+				}
+
+				// Characters after the closing quote are ignored
+				while (i < limit && !isFieldEnd(buffer.get(i))) {
+					i++;
+				}
+
+			} else {
+
+				start = i;
+				while (i < limit && !isFieldEnd(buffer.get(i))) {
+					i++;
+				}
+				end = i;
+
+			}
+
+			if (i >= limit && !lastWindow) {
+				return -1;
+			}
+
+			setField(column, start, end, escapedQuotes);
+			column++;
+
+			if (i >= limit) {
+				break;
+			}
+
+			byte b = buffer.get(i);
+			if (b == separator) {
+				i++;
+			} else if (b == CR) {
+				if (i + 1 >= limit && !lastWindow) {
+					return -1;
+				}
+				i++;
+				if (i < limit && buffer.get(i) == LF) {
+					i++;
+				}
+				break;
+			} else {
+				i++;
+				break;
+			}
+
+		}
+
+		position = windowStart + i;
+
+		return column;
+
+	}
+
+	private boolean isFieldEnd(byte b) {
+		return b == separator || b == LF || b == CR;
+	}
+
+	private void setField(int column, int start, int end, boolean escapedQuotes) {
+
+		if (column == row.length) {
+			String[] newRow = new String[row.length * 2];
+			System.arraycopy(row, 0, newRow, 0, row.length);
+			row = newRow;
+		}
+
+		if (mappedColumns != null && (column >= mappedColumns.length || !mappedColumns[column])) {
+			row[column] = null;
+			return;
+		}
+
+		int length = end - start;
+		if (length > fieldBytes.length) {
+			fieldBytes = new byte[Math.max(length, fieldBytes.length * 2)];
+		}
+
+		if (escapedQuotes) {
+
+			length = 0;
+			for (int i = start; i < end; i++) {
+				byte b = buffer.get(i);
+				fieldBytes[length++] = b;
+				if (b == QUOTE) {
+					i++; // Skip the second quote
+				}
+			}
+
+		} else {
+			buffer.position(start);
+			buffer.get(fieldBytes, 0, length);
+		}
+
+		row[column] = new String(fieldBytes, 0, length, charset);
+
+	}
+
+	@Override
+	public long getPosition() {
+		return position;
+	}
+
+	// Continues reading at the specified byte position, which can be in the middle of a row
+	public void setPosition(long position) {
+		this.position = Math.max(0, Math.min(position, size));
+	}
+
+	@Override
+	public boolean seek(long position) {
+		setPosition(position);
+		return true;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		unmap();
+		channel.close();
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+import com.opencsv.CSVParserBuilder;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.exceptions.CsvValidationException;
+
+// Reads the rows of a csv file one by one, only the current row (and the read buffer) is kept in memory
+public class OpenCsvRowSource implements CsvRowSource {
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private final long size;
+	private final CSVReader csvReader;
+
+	public OpenCsvRowSource(File file, char separator, Charset charset) throws IOException {
+
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		size = channel.size();
+
+		Reader reader = Channels.newReader(channel, charset.newDecoder(), BUFFER_SIZE);
+		csvReader = new CSVReaderBuilder(reader).withCSVParser(new CSVParserBuilder().withSeparator(separator).build()).build();
+
+	}
+
+	@Override
+	public String[] readRow() throws IOException {
+		try {
+			return csvReader.readNext();
+		} catch (CsvValidationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public long getPosition() {
+		try {
+			return channel.isOpen() ? channel.position() : size;
+		} catch (IOException e) {
+			return size;
+		}
+	}
+
+	// The position of the channel is ahead of the rows which were parsed (read buffers), so it can't be used as a cursor
+	@Override
+	public boolean seek(long position) {
+		return false;
+	}
+
+	@Override
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException {
+		csvReader.close();
+	}
+
+}
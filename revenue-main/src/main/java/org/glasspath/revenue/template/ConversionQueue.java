@@ -0,0 +1,541 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.template;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.glasspath.common.Common;
+import org.glasspath.common.os.OsUtils;
+import org.glasspath.revenue.template.word.WordUtils;
+import org.glasspath.revenue.template.writer.OfficeProcessPool;
+import org.glasspath.revenue.template.writer.WriterUtils;
+
+// Converts documents to pdf on background threads so the caller (like the EDT) never waits for an office
+// application. Jobs are ordered by priority and then in submit order, one extra worker only runs previews so a
+// preview never waits for a batch. Workers run the conversion on a separate thread and wait for it, a failed
+// conversion is retried and a job which takes longer than the timeout is abandoned so the worker is free again
+// (the office processes are restarted and a hung Word process is killed, which also ends the blocked conversion).
+// Every attempt converts to its own temp file which is moved into place when the attempt succeeded, so an
+// abandoned conversion never writes the pdf file.
+@SuppressWarnings("nls")
+public class ConversionQueue {
+
+	public static final int PRIORITY_PREVIEW = 0;
+	public static final int PRIORITY_BATCH = 1;
+
+	public static final int CONVERTER_OFFICE = 0;
+	public static final int CONVERTER_WORD = 1;
+	public static final int CONVERTER_IN_PROCESS = 2;
+
+	public static final int STATUS_QUEUED = 0;
+	public static final int STATUS_RUNNING = 1;
+	public static final int STATUS_FINISHED = 2;
+	public static final int STATUS_FAILED = 3;
+	public static final int STATUS_CANCELLED = 4;
+	public static final int STATUS_TIMED_OUT = 5;
+
+	public static final int DEFAULT_THREAD_COUNT = 2;
+	public static final int DEFAULT_MAX_RETRIES = 1;
+	public static final long DEFAULT_TIMEOUT = 3 * 60 * 1000L;
+	public static final long CONVERTER_KEEP_ALIVE = 60 * 1000L;
+	public static final String TEMP_FILE_PREFIX = "~conversion_";
+
+	private static ConversionQueue instance = null;
+
+	private final ThreadPoolExecutor executor;
+	private final ThreadPoolExecutor previewExecutor;
+	private final ThreadPoolExecutor conversionExecutor;
+	// Word is automated through a single application instance, conversions with Word run one at a time on this thread
+	private final ThreadPoolExecutor wordExecutor;
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong finishedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	private volatile long timeout = DEFAULT_TIMEOUT;
+
+	// Thread count is the number of workers for all jobs, one more worker is started for previews
+	public ConversionQueue(int threadCount) {
+
+		executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), createThreadFactory("Conversion queue"));
+		previewExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), createThreadFactory("Conversion queue preview"));
+		// One converter thread for every worker, idle threads are stopped
+		conversionExecutor = new ThreadPoolExecutor(threadCount + 1, threadCount + 1, CONVERTER_KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), createThreadFactory("Conversion"));
+		conversionExecutor.allowCoreThreadTimeOut(true);
+		wordExecutor = new ThreadPoolExecutor(1, 1, CONVERTER_KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), createThreadFactory("Conversion word"));
+		wordExecutor.allowCoreThreadTimeOut(true);
+
+	}
+
+	private static ThreadFactory createThreadFactory(final String name) {
+
+		final AtomicInteger threadNumber = new AtomicInteger();
+
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+
+				Thread thread = new Thread(runnable, name + " " + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+
+				return thread;
+
+			}
+		};
+
+	}
+
+	public static synchronized ConversionQueue getInstance() {
+
+		if (instance == null) {
+			instance = new ConversionQueue(DEFAULT_THREAD_COUNT);
+		}
+
+		return instance;
+
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = Math.max(0, maxRetries);
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	// Used for jobs which are submitted after this call, 0 disables the timeout
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public long getFinishedCount() {
+		return finishedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public int getPendingCount() {
+		return executor.getQueue().size();
+	}
+
+	public ConversionJob submit(File sourceFile, File pdfFile, int priority, ConversionListener listener) {
+		return submit(sourceFile, pdfFile, getDefaultConverter(sourceFile), priority, listener);
+	}
+
+	public ConversionJob submit(File sourceFile, File pdfFile, int converter, int priority, ConversionListener listener) {
+
+		ConversionJob job = new ConversionJob(sourceFile, pdfFile, converter, priority, sequence.incrementAndGet(), maxRetries, timeout, listener);
+		executor.execute(job); // Throws RejectedExecutionException after shutdown()
+
+		// Previews are also queued for the preview worker, the first worker which is free runs the job
+		if (priority == PRIORITY_PREVIEW) {
+			previewExecutor.execute(job);
+		}
+
+		return job;
+
+	}
+
+	public static int getDefaultConverter(File sourceFile) {
+
+		// Aerialist documents can't be opened by the office applications
+		if (GpdxPdfRenderer.isSupported(sourceFile)) {
+			return CONVERTER_IN_PROCESS;
+		} else if (OsUtils.PLATFORM_WINDOWS && TemplateFiles.getFileType(sourceFile) == TemplateFiles.FILE_TYPE_DOCX) {
+			return CONVERTER_WORD;
+		} else {
+			return CONVERTER_OFFICE;
+		}
+
+	}
+
+	private static void convert(int converter, File sourceFile, File pdfFile) throws Exception {
+
+		switch (converter) {
+
+		case CONVERTER_WORD:
+			WordUtils.exportToPdf(sourceFile, pdfFile);
+			break;
+
+		case CONVERTER_IN_PROCESS:
+			XDocPdfConverter.exportToPdf(sourceFile, pdfFile);
+			break;
+
+		default:
+			WriterUtils.exportToPdf(sourceFile, pdfFile);
+			break;
+
+		}
+
+	}
+
+	private ThreadPoolExecutor getConverterExecutor(int converter) {
+		return converter == CONVERTER_WORD ? wordExecutor : conversionExecutor;
+	}
+
+	// Stops the external process of a conversion which hangs, the blocked converter thread then returns with an exception.
+	// An in-process conversion can only be interrupted, it keeps its converter thread until it returns.
+	private static void stopConversion(int converter) {
+
+		switch (converter) {
+
+		case CONVERTER_WORD:
+			if (WordUtils.killConversionProcess()) {
+				Common.LOGGER.error("Word conversion timed out, Word process was killed");
+			}
+			break;
+
+		case CONVERTER_IN_PROCESS:
+			break;
+
+		default:
+			OfficeProcessPool.getInstance().restart();
+			break;
+
+		}
+
+	}
+
+	// Queued jobs are discarded, running jobs are interrupted
+	public synchronized void shutdown() {
+		executor.shutdownNow();
+		previewExecutor.shutdownNow();
+		conversionExecutor.shutdownNow();
+		wordExecutor.shutdownNow();
+	}
+
+	public class ConversionJob implements Runnable, Future<File>, Comparable<ConversionJob> {
+
+		private final File sourceFile;
+		private final File pdfFile;
+		private final int converter;
+		private final int priority;
+		private final long sequence;
+		private final int maxRetries;
+		private final long timeout;
+		private final ConversionListener listener;
+		private final FutureTask<File> task;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private volatile boolean started = false;
+		private volatile int attemptCount = 0;
+		private volatile boolean timedOut = false;
+
+		private ConversionJob(File sourceFile, File pdfFile, int converter, int priority, long sequence, int maxRetries, long timeout, ConversionListener listener) {
+
+			this.sourceFile = sourceFile;
+			this.pdfFile = pdfFile;
+			this.converter = converter;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.maxRetries = maxRetries;
+			this.timeout = timeout;
+			this.listener = listener;
+
+			task = new FutureTask<File>(new Callable<File>() {
+
+				@Override
+				public File call() throws Exception {
+					return perform();
+				}
+			}) {
+
+				@Override
+				protected void done() {
+					finished();
+				}
+			};
+
+		}
+
+		public File getSourceFile() {
+			return sourceFile;
+		}
+
+		public File getPdfFile() {
+			return pdfFile;
+		}
+
+		public int getConverter() {
+			return converter;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public int getStatus() {
+
+			if (task.isCancelled()) {
+				return STATUS_CANCELLED;
+			} else if (task.isDone()) {
+				if (timedOut) {
+					return STATUS_TIMED_OUT;
+				} else {
+					return getException() != null ? STATUS_FAILED : STATUS_FINISHED;
+				}
+			} else {
+				return started ? STATUS_RUNNING : STATUS_QUEUED;
+			}
+
+		}
+
+		public int getAttemptCount() {
+			return attemptCount;
+		}
+
+		// Null if the job was successful, cancelled or is not finished yet (a TimeoutException if it timed out)
+		public Exception getException() {
+
+			if (task.isDone() && !task.isCancelled()) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					return e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			return null;
+
+		}
+
+		@Override
+		public void run() {
+
+			// Cancelled while queued, or already run by the other worker (previews are queued twice)
+			if (task.isDone() || !claimed.compareAndSet(false, true)) {
+				return;
+			}
+
+			started = true;
+
+			if (listener != null) {
+				try {
+					listener.conversionStarted(this);
+				} catch (Exception e) {
+					Common.LOGGER.error("Exception in conversion listener", e);
+				}
+			}
+
+			task.run();
+
+		}
+
+		private File perform() throws Exception {
+
+			Exception exception = null;
+			long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0L;
+
+			while (attemptCount <= maxRetries) {
+
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+
+				attemptCount++;
+
+				try {
+
+					convert(deadline);
+
+					return pdfFile;
+
+				} catch (InterruptedException | TimeoutException e) {
+					throw e;
+				} catch (Exception e) {
+
+					if (task.isCancelled()) {
+						throw e;
+					}
+
+					exception = e;
+					Common.LOGGER.error("Exception while converting " + sourceFile.getName() + " to pdf, attempt " + attemptCount, e);
+
+				}
+
+			}
+
+			throw exception;
+
+		}
+
+		// Waits for the conversion on a converter thread, so the worker is free again when the conversion hangs
+		private void convert(long deadline) throws Exception {
+
+			// Keeps the extension, the converters use it to choose the output format
+			final File tempFile = new File(pdfFile.getParentFile(), TEMP_FILE_PREFIX + sequence + "_" + attemptCount + "_" + pdfFile.getName());
+			final AtomicBoolean abandoned = new AtomicBoolean();
+
+			Future<Void> future = getConverterExecutor(converter).submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+
+					try {
+						ConversionQueue.convert(converter, sourceFile, tempFile);
+					} finally {
+
+						// The worker stopped waiting, the result of this attempt is not used
+						if (abandoned.get()) {
+							tempFile.delete();
+						}
+
+					}
+
+					return null;
+
+				}
+			});
+
+			try {
+
+				if (deadline > 0) {
+					future.get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				} else {
+					future.get();
+				}
+
+				if (!tempFile.exists()) {
+					throw new IllegalStateException("Pdf file was not created: " + pdfFile.getAbsolutePath());
+				}
+
+				Files.move(tempFile.toPath(), pdfFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			} catch (TimeoutException e) {
+
+				timedOut = true;
+				abandoned.set(true);
+				future.cancel(true);
+
+				stopConversion(converter);
+
+				throw new TimeoutException("Conversion of " + sourceFile.getName() + " timed out after " + timeout + " ms");
+
+			} catch (InterruptedException e) {
+				abandoned.set(true);
+				future.cancel(true);
+				throw e;
+			} finally {
+				tempFile.delete();
+			}
+
+		}
+
+		private void finished() {
+
+			int status = getStatus();
+			if (status == STATUS_FINISHED) {
+				finishedCount.incrementAndGet();
+			} else if (status == STATUS_FAILED) {
+				failedCount.incrementAndGet();
+			}
+
+			if (listener != null) {
+				try {
+					listener.conversionFinished(this);
+				} catch (Exception e) {
+					Common.LOGGER.error("Exception in conversion listener", e);
+				}
+			}
+
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+
+			boolean cancelled = task.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				executor.remove(this);
+				previewExecutor.remove(this);
+			}
+
+			return cancelled;
+
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return task.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return task.isDone();
+		}
+
+		@Override
+		public File get() throws InterruptedException, ExecutionException {
+			return task.get();
+		}
+
+		@Override
+		public File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return task.get(timeout, unit);
+		}
+
+		@Override
+		public int compareTo(ConversionJob other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			} else {
+				return sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+			}
+		}
+
+	}
+
+	public static interface ConversionListener {
+
+		// Called on the conversion thread, use SwingUtilities.invokeLater() to update the UI
+		public void conversionStarted(ConversionJob job);
+
+		// Also called when the job failed, was cancelled or timed out, see ConversionJob.getStatus()
+		public void conversionFinished(ConversionJob job);
+
+	}
+
+}
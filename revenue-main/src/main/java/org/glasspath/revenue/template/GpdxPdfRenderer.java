@@ -0,0 +1,1229 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.template;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.glasspath.aerialist.IFieldContext;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.lowagie.text.Chunk;
+import com.lowagie.text.Document;
+import com.lowagie.text.Element;
+import com.lowagie.text.Font;
+import com.lowagie.text.FontFactory;
+import com.lowagie.text.Image;
+import com.lowagie.text.PageSize;
+import com.lowagie.text.Paragraph;
+import com.lowagie.text.Rectangle;
+import com.lowagie.text.pdf.BaseFont;
+import com.lowagie.text.pdf.ColumnText;
+import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfPCell;
+import com.lowagie.text.pdf.PdfPTable;
+import com.lowagie.text.pdf.PdfWriter;
+
+// Renders Aerialist documents (.gpdx) to pdf in-process with iText (the library used by the XDocReport pdf
+// converters), no editor, Word or LibreOffice process is needed. The document model (content.xml and the images
+// of the .gpdx) is read once by load() and can then be rendered by many threads at once, every render fills the
+// fields from its own IFieldContext. Elements below an element which grows (height policy auto) move down by the
+// same amount, table rows with list fields are repeated for every item and tables continue on a new page (with
+// the header rows) when they don't fit, like in the editor.
+@SuppressWarnings("nls")
+public class GpdxPdfRenderer {
+
+	public static final String CONTENT_ENTRY = "content.xml";
+	public static final String IMAGES_ENTRY = "media/images/";
+	public static final String TEMPLATE_FIELD_PREFIX = "t:";
+	public static final String DYNAMIC_FIELD_PREFIX = "d:";
+	public static final String PAGE_FIELD = "Page";
+	public static final String PAGES_FIELD = "Pages";
+	public static final float DEFAULT_FONT_SIZE = 12.0F;
+	public static final float LEADING = 1.2F;
+	public static final float DEFAULT_MIN_HEIGHT = 50.0F;
+
+	private static final int MAX_MEASURE_HEIGHT = 100000;
+	private static final float MEASURE_TOLERANCE = 1.0F; // ColumnText drops the last line if it fits exactly (rounding)
+
+	private GpdxPdfRenderer() {
+
+	}
+
+	public static boolean isSupported(File file) {
+		return TemplateFiles.getFileType(file) == TemplateFiles.FILE_TYPE_GPDX;
+	}
+
+	public static GpdxDocument load(File file) throws IOException {
+
+		try (ZipFile zipFile = new ZipFile(file)) {
+
+			ZipEntry contentEntry = zipFile.getEntry(CONTENT_ENTRY);
+			if (contentEntry == null) {
+				throw new IOException("Not an Aerialist document (no " + CONTENT_ENTRY + "): " + file.getName());
+			}
+
+			org.w3c.dom.Document xml;
+			try (InputStream in = zipFile.getInputStream(contentEntry)) {
+				xml = createDocumentBuilder().parse(in);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("Invalid content in " + file.getName(), e);
+			}
+
+			Map<String, byte[]> images = new HashMap<>();
+
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+
+				ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory() && entry.getName().startsWith(IMAGES_ENTRY)) {
+					try (InputStream in = zipFile.getInputStream(entry)) {
+						images.put(entry.getName().substring(IMAGES_ENTRY.length()), readBytes(in));
+					}
+				}
+
+			}
+
+			return new GpdxDocument(xml.getDocumentElement(), images);
+
+		}
+
+	}
+
+	// Fields are filled from the context, with a null context the text of the fields is kept (for documents which were already filled)
+	public static void exportToPdf(GpdxDocument document, IFieldContext context, OutputStream out) throws IOException {
+
+		List<RenderedPage> pages = new ArrayList<>();
+		for (PageModel page : document.pages) {
+			if (isVisible(page, context)) {
+				layout(document, page, context, pages);
+			}
+		}
+
+		// An empty document is still a valid pdf
+		if (pages.size() == 0) {
+			pages.add(new RenderedPage(document.pages.size() > 0 ? document.pages.get(0) : new PageModel(PageSize.A4.getWidth(), PageSize.A4.getHeight(), null, new ArrayList<ElementModel>())));
+		}
+
+		RenderedPage firstPage = pages.get(0);
+		Document pdfDocument = new Document(new Rectangle(firstPage.width, firstPage.height), 0, 0, 0, 0);
+
+		try {
+
+			PdfWriter writer = PdfWriter.getInstance(pdfDocument, out);
+			pdfDocument.open();
+
+			for (int i = 0; i < pages.size(); i++) {
+
+				RenderedPage page = pages.get(i);
+
+				if (i > 0) {
+					pdfDocument.setPageSize(new Rectangle(page.width, page.height));
+					writer.setPageEmpty(false);
+					pdfDocument.newPage();
+				}
+
+				PdfContentByte canvas = writer.getDirectContent();
+				FieldValues values = new FieldValues(context, i + 1, pages.size());
+
+				if (document.header != null) {
+					drawStatic(document, document.header, values, canvas, page.height);
+				}
+
+				for (DrawOperation operation : page.operations) {
+					operation.draw(canvas, page.height);
+				}
+
+				if (document.footer != null) {
+					drawStatic(document, document.footer, values, canvas, page.height);
+				}
+
+			}
+
+			pdfDocument.close();
+
+		} catch (com.lowagie.text.DocumentException e) {
+			throw new IOException(e);
+		}
+
+	}
+
+	private static void layout(GpdxDocument document, PageModel page, IFieldContext context, List<RenderedPage> pages) throws IOException {
+
+		FieldValues values = new FieldValues(context, 0, 0);
+
+		float top = getContentTop(document);
+		float bottom = getContentBottom(document, page);
+
+		RenderedPage renderedPage = new RenderedPage(page);
+		pages.add(renderedPage);
+
+		// Offset of the elements which follow an element that grew, shrunk or continued on the next page
+		float shift = 0.0F;
+
+		for (ElementModel element : page.elements) {
+
+			float y = element.y + shift;
+
+			if (element instanceof TextBoxModel) {
+
+				TextBoxModel textBox = (TextBoxModel) element;
+
+				float height = textBox.height;
+				if (textBox.autoHeight) {
+					height = Math.max(height, measureText(textBox.text, values, textBox.alignment, textBox.width, textBox.padding));
+				}
+
+				if (y + height > bottom && y > top) {
+					renderedPage = new RenderedPage(page);
+					pages.add(renderedPage);
+					y = top;
+				}
+
+				renderedPage.operations.add(createTextOperation(textBox.text, values, textBox.alignment, textBox.x, y, textBox.width, height, textBox.padding));
+
+				shift = y + height - (element.y + element.height);
+
+			} else if (element instanceof TableModel) {
+
+				TableModel tableModel = (TableModel) element;
+
+				PdfPTable table = createTable(tableModel, values);
+				int rowCount = table.getRows().size();
+				int headerRows = Math.min(tableModel.headerRows, rowCount);
+
+				if (rowCount > headerRows && y + Math.min(table.getTotalHeight(), getRowsHeight(table, 0, headerRows + 1)) > bottom && y > top) {
+					renderedPage = new RenderedPage(page);
+					pages.add(renderedPage);
+					y = top;
+				}
+
+				int row = headerRows;
+				float rowsTop = y;
+
+				while (true) {
+
+					// At least one row is written on every page, even if it's higher than the page
+					float available = bottom - rowsTop - (row > headerRows ? getRowsHeight(table, 0, headerRows) : 0.0F);
+					int endRow = row;
+					float height = 0.0F;
+					while (endRow < rowCount && (endRow == row || height + table.getRowHeight(endRow) <= available)) {
+						height += table.getRowHeight(endRow);
+						endRow++;
+					}
+
+					if (row == headerRows) {
+						renderedPage.operations.add(createTableOperation(table, 0, endRow, tableModel.x, rowsTop));
+						height += getRowsHeight(table, 0, headerRows);
+					} else {
+						renderedPage.operations.add(createTableOperation(table, 0, headerRows, tableModel.x, rowsTop));
+						float headerHeight = getRowsHeight(table, 0, headerRows);
+						renderedPage.operations.add(createTableOperation(table, row, endRow, tableModel.x, rowsTop + headerHeight));
+						height += headerHeight;
+					}
+
+					row = endRow;
+					y = rowsTop + height;
+
+					if (row >= rowCount) {
+						break;
+					}
+
+					renderedPage = new RenderedPage(page);
+					pages.add(renderedPage);
+					rowsTop = top;
+
+				}
+
+				// A table with a fixed height keeps at least that height on its last page
+				if (!tableModel.autoHeight && rowsTop == element.y + shift) {
+					y = Math.max(y, rowsTop + tableModel.height);
+				}
+
+				shift = y - (element.y + element.height);
+
+			} else if (element instanceof ImageModel) {
+
+				ImageModel imageModel = (ImageModel) element;
+
+				Image image = getImage(document, imageModel.src, context);
+				if (image == null) {
+					shift = y - element.y;
+					continue;
+				}
+
+				float width = imageModel.width;
+				float height = imageModel.height;
+				float ratio = image.getHeight() / Math.max(1.0F, image.getWidth());
+
+				if ("width".equals(imageModel.fit) && imageModel.autoHeight) {
+					height = width * ratio;
+				} else if ("height".equals(imageModel.fit) && imageModel.autoHeight) {
+					width = height / ratio;
+				} else if (height / width > ratio) {
+					height = width * ratio;
+				} else {
+					width = height / ratio;
+				}
+
+				if (y + height > bottom && y > top) {
+					renderedPage = new RenderedPage(page);
+					pages.add(renderedPage);
+					y = top;
+				}
+
+				renderedPage.operations.add(createImageOperation(image, imageModel.x, y, width, height));
+
+				shift = y + (imageModel.autoHeight ? height : imageModel.height) - (element.y + element.height);
+
+			}
+
+		}
+
+	}
+
+	// Header and footer are not moved and can contain the page number fields
+	private static void drawStatic(GpdxDocument document, PageModel page, FieldValues values, PdfContentByte canvas, float pageHeight) throws IOException {
+
+		for (ElementModel element : page.elements) {
+
+			if (element instanceof TextBoxModel) {
+				TextBoxModel textBox = (TextBoxModel) element;
+				createTextOperation(textBox.text, values, textBox.alignment, textBox.x, textBox.y, textBox.width, textBox.height, textBox.padding).draw(canvas, pageHeight);
+			} else if (element instanceof TableModel) {
+				TableModel tableModel = (TableModel) element;
+				PdfPTable table = createTable(tableModel, values);
+				createTableOperation(table, 0, table.getRows().size(), tableModel.x, tableModel.y).draw(canvas, pageHeight);
+			} else if (element instanceof ImageModel) {
+				ImageModel imageModel = (ImageModel) element;
+				Image image = getImage(document, imageModel.src, values.context);
+				if (image != null) {
+					createImageOperation(image, imageModel.x, imageModel.y, imageModel.width, imageModel.height).draw(canvas, pageHeight);
+				}
+			}
+
+		}
+
+	}
+
+	// Below the header, the rows of a table which continues on a new page start here
+	private static float getContentTop(GpdxDocument document) {
+
+		float top = 0.0F;
+		if (document.header != null) {
+			for (ElementModel element : document.header.elements) {
+				top = Math.max(top, element.y + element.height);
+			}
+		}
+
+		return top > 0.0F ? top : document.minHeight;
+
+	}
+
+	// Above the footer, or the minimum height of the pagination if there is no footer
+	private static float getContentBottom(GpdxDocument document, PageModel page) {
+
+		float bottom = page.height - document.minHeight;
+		if (document.footer != null) {
+			for (ElementModel element : document.footer.elements) {
+				bottom = Math.min(bottom, element.y);
+			}
+		}
+
+		return bottom;
+
+	}
+
+	private static boolean isVisible(PageModel page, IFieldContext context) {
+
+		if (page.visible == null || context == null || !page.visible.startsWith(TEMPLATE_FIELD_PREFIX)) {
+			return true;
+		}
+
+		String key = page.visible.substring(TEMPLATE_FIELD_PREFIX.length());
+
+		Object value = context.getObject(key);
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		}
+
+		return "true".equalsIgnoreCase(context.getString(key));
+
+	}
+
+	private static float measureText(TextModel text, FieldValues values, int alignment, float width, float[] padding) throws IOException {
+
+		ColumnText columnText = new ColumnText(null);
+		columnText.setSimpleColumn(0.0F, -MAX_MEASURE_HEIGHT, width - padding[1] - padding[3], 0.0F);
+		for (Paragraph paragraph : createParagraphs(text, values, -1, alignment)) {
+			columnText.addElement(paragraph);
+		}
+
+		try {
+			columnText.go(true);
+		} catch (com.lowagie.text.DocumentException e) {
+			throw new IOException(e);
+		}
+
+		return -columnText.getYLine() + padding[0] + padding[2] + MEASURE_TOLERANCE;
+
+	}
+
+	private static DrawOperation createTextOperation(final TextModel text, final FieldValues values, final int alignment, final float x, final float y, final float width, final float height, final float[] padding) {
+		return new DrawOperation() {
+
+			@Override
+			public void draw(PdfContentByte canvas, float pageHeight) throws IOException {
+
+				ColumnText columnText = new ColumnText(canvas);
+				columnText.setSimpleColumn(x + padding[3], pageHeight - y - height + padding[2], x + width - padding[1], pageHeight - y - padding[0]);
+				for (Paragraph paragraph : createParagraphs(text, values, -1, alignment)) {
+					columnText.addElement(paragraph);
+				}
+
+				try {
+					columnText.go();
+				} catch (com.lowagie.text.DocumentException e) {
+					throw new IOException(e);
+				}
+
+			}
+		};
+	}
+
+	private static DrawOperation createTableOperation(final PdfPTable table, final int startRow, final int endRow, final float x, final float y) {
+		return new DrawOperation() {
+
+			@Override
+			public void draw(PdfContentByte canvas, float pageHeight) {
+				if (endRow > startRow) {
+					table.writeSelectedRows(startRow, endRow, x, pageHeight - y, canvas);
+				}
+			}
+		};
+	}
+
+	private static DrawOperation createImageOperation(final Image image, final float x, final float y, final float width, final float height) {
+		return new DrawOperation() {
+
+			@Override
+			public void draw(PdfContentByte canvas, float pageHeight) throws IOException {
+
+				try {
+					canvas.addImage(image, width, 0, 0, height, x, pageHeight - y - height);
+				} catch (com.lowagie.text.DocumentException e) {
+					throw new IOException(e);
+				}
+
+			}
+		};
+	}
+
+	private static PdfPTable createTable(TableModel tableModel, FieldValues values) throws IOException {
+
+		int colCount = tableModel.colCount;
+
+		// Columns without a width share the remaining width
+		float[] widths = new float[colCount];
+		float fixedWidth = 0.0F;
+		int freeCount = 0;
+		for (int col = 1; col <= colCount; col++) {
+			Float width = tableModel.colWidths.get(col);
+			if (width != null) {
+				widths[col - 1] = width;
+				fixedWidth += width;
+			} else {
+				freeCount++;
+			}
+		}
+		for (int col = 0; col < colCount; col++) {
+			if (widths[col] == 0.0F) {
+				widths[col] = Math.max(1.0F, (tableModel.width - fixedWidth) / Math.max(1, freeCount));
+			}
+		}
+
+		PdfPTable table = new PdfPTable(colCount);
+		table.setTotalWidth(tableModel.width);
+		table.setLockedWidth(true);
+		table.setSplitLate(false);
+
+		try {
+			table.setWidths(widths);
+		} catch (com.lowagie.text.DocumentException e) {
+			throw new IOException(e);
+		}
+
+		int renderedRow = 0;
+
+		for (int row = 1; row <= tableModel.rowCount; row++) {
+
+			Map<Integer, CellModel> cells = tableModel.cells.get(row);
+
+			// Rows with list fields are repeated for every item of the list
+			int repeatCount = 1;
+			if (cells != null && values.context != null) {
+
+				boolean listRow = false;
+				int maxSize = 0;
+
+				for (CellModel cell : cells.values()) {
+					for (StyleModel style : cell.text.styles) {
+						if (style.source != null && style.source.startsWith(TEMPLATE_FIELD_PREFIX)) {
+							List<String> list = values.context.getList(style.source.substring(TEMPLATE_FIELD_PREFIX.length()));
+							if (list != null) {
+								listRow = true;
+								maxSize = Math.max(maxSize, list.size());
+							}
+						}
+					}
+				}
+
+				if (listRow) {
+					repeatCount = maxSize;
+				}
+
+			}
+
+			for (int index = 0; index < repeatCount; index++) {
+
+				Color background = tableModel.getBackground(renderedRow);
+
+				for (int col = 1; col <= colCount; col++) {
+
+					CellModel cellModel = cells != null ? cells.get(col) : null;
+
+					PdfPCell cell = new PdfPCell();
+					cell.setPaddingTop(tableModel.padding[0]);
+					cell.setPaddingRight(tableModel.padding[1]);
+					cell.setPaddingBottom(tableModel.padding[2]);
+					cell.setPaddingLeft(tableModel.padding[3]);
+					cell.setUseAscender(true);
+					cell.setBorder(tableModel.getBorder(renderedRow, col));
+					if (tableModel.borderColor != null) {
+						cell.setBorderColor(tableModel.borderColor);
+						cell.setBorderWidth(tableModel.borderWidth);
+					}
+					if (background != null) {
+						cell.setBackgroundColor(background);
+					}
+
+					if (cellModel != null) {
+						for (Paragraph paragraph : createParagraphs(cellModel.text, values, index, cellModel.alignment)) {
+							cell.addElement(paragraph);
+						}
+					}
+
+					table.addCell(cell);
+
+				}
+
+				renderedRow++;
+
+			}
+
+		}
+
+		return table;
+
+	}
+
+	private static float getRowsHeight(PdfPTable table, int startRow, int endRow) {
+
+		float height = 0.0F;
+		for (int row = startRow; row < endRow && row < table.getRows().size(); row++) {
+			height += table.getRowHeight(row);
+		}
+
+		return height;
+
+	}
+
+	// Every line of the text is a paragraph, the styles cover the text from start to end and a style with a source
+	// is replaced by the value of the field (item listIndex of the list for repeated table rows)
+	private static List<Paragraph> createParagraphs(TextModel text, FieldValues values, int listIndex, int alignment) {
+
+		List<Paragraph> paragraphs = new ArrayList<>();
+
+		Paragraph paragraph = createParagraph(alignment);
+		float spaceAbove = 0.0F;
+		Font lastFont = getFont(null);
+
+		List<StyleModel> styles = text.styles;
+		if (styles.size() == 0) {
+			styles = Collections.singletonList(new StyleModel(0, text.text.length()));
+		}
+
+		int end = 0;
+
+		for (StyleModel style : styles) {
+
+			int start = Math.max(end, Math.min(style.start, text.text.length()));
+			end = Math.max(start, Math.min(style.end, text.text.length()));
+
+			String value = null;
+			if (style.source != null) {
+				value = values.getValue(style.source, listIndex);
+			}
+			if (value == null) {
+				value = text.text.substring(start, end);
+			}
+
+			Font font = getFont(style);
+			lastFont = font;
+
+			int lineStart = 0;
+			while (true) {
+
+				int lineEnd = value.indexOf('\n', lineStart);
+				String line = lineEnd >= 0 ? value.substring(lineStart, lineEnd) : value.substring(lineStart);
+
+				if (line.length() > 0) {
+					paragraph.add(new Chunk(line, font));
+					spaceAbove = Math.max(spaceAbove, style.spaceAbove);
+				}
+
+				if (lineEnd < 0) {
+					break;
+				}
+
+				paragraphs.add(finishParagraph(paragraph, spaceAbove, font));
+				paragraph = createParagraph(alignment);
+				spaceAbove = 0.0F;
+				lineStart = lineEnd + 1;
+
+			}
+
+		}
+
+		paragraphs.add(finishParagraph(paragraph, spaceAbove, lastFont));
+
+		return paragraphs;
+
+	}
+
+	private static Paragraph createParagraph(int alignment) {
+
+		Paragraph paragraph = new Paragraph();
+		paragraph.setLeading(0.0F, LEADING);
+		paragraph.setAlignment(alignment);
+
+		return paragraph;
+
+	}
+
+	private static Paragraph finishParagraph(Paragraph paragraph, float spaceAbove, Font font) {
+
+		// An empty line still has the height of the font
+		if (paragraph.size() == 0) {
+			paragraph.add(new Chunk(" ", font));
+		}
+
+		paragraph.setSpacingBefore(spaceAbove);
+
+		return paragraph;
+
+	}
+
+	private static Font getFont(StyleModel style) {
+
+		if (style == null) {
+			return FontFactory.getFont(FontFactory.HELVETICA, BaseFont.CP1252, false, DEFAULT_FONT_SIZE, Font.NORMAL, Color.black);
+		}
+
+		int fontStyle = Font.NORMAL;
+		if (style.bold) {
+			fontStyle |= Font.BOLD;
+		}
+		if (style.italic) {
+			fontStyle |= Font.ITALIC;
+		}
+
+		return FontFactory.getFont(FontFactory.HELVETICA, BaseFont.CP1252, false, style.fontSize, fontStyle, style.foreground != null ? style.foreground : Color.black);
+
+	}
+
+	// Images of fields are taken from the context (png or jpeg bytes or an awt image), otherwise the image stored in the document is used
+	private static Image getImage(GpdxDocument document, String src, IFieldContext context) throws IOException {
+
+		if (src == null) {
+			return null;
+		}
+
+		try {
+
+			if (context != null && src.startsWith(TEMPLATE_FIELD_PREFIX)) {
+
+				Object value = context.getObject(src.substring(TEMPLATE_FIELD_PREFIX.length()));
+				if (value instanceof byte[]) {
+					return Image.getInstance((byte[]) value);
+				} else if (value instanceof java.awt.Image) {
+					return Image.getInstance((java.awt.Image) value, null);
+				}
+
+			}
+
+			byte[] bytes = document.images.get(src);
+			return bytes != null ? Image.getInstance(bytes) : null;
+
+		} catch (com.lowagie.text.DocumentException e) {
+			throw new IOException(e);
+		}
+
+	}
+
+	private static DocumentBuilder createDocumentBuilder() throws Exception {
+
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		factory.setExpandEntityReferences(false);
+
+		return factory.newDocumentBuilder();
+
+	}
+
+	private static byte[] readBytes(InputStream in) throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		byte[] buffer = new byte[8192];
+		int length;
+		while ((length = in.read(buffer)) > 0) {
+			out.write(buffer, 0, length);
+		}
+
+		return out.toByteArray();
+
+	}
+
+	private static org.w3c.dom.Element getChild(org.w3c.dom.Element parent, String name) {
+
+		if (parent != null) {
+			NodeList children = parent.getChildNodes();
+			for (int i = 0; i < children.getLength(); i++) {
+				Node child = children.item(i);
+				if (child instanceof org.w3c.dom.Element && name.equals(child.getNodeName())) {
+					return (org.w3c.dom.Element) child;
+				}
+			}
+		}
+
+		return null;
+
+	}
+
+	private static List<org.w3c.dom.Element> getChildren(org.w3c.dom.Element parent, String listName, String name) {
+
+		List<org.w3c.dom.Element> elements = new ArrayList<>();
+
+		org.w3c.dom.Element list = getChild(parent, listName);
+		if (list != null) {
+			NodeList children = list.getChildNodes();
+			for (int i = 0; i < children.getLength(); i++) {
+				Node child = children.item(i);
+				if (child instanceof org.w3c.dom.Element && name.equals(child.getNodeName())) {
+					elements.add((org.w3c.dom.Element) child);
+				}
+			}
+		}
+
+		return elements;
+
+	}
+
+	private static String getString(org.w3c.dom.Element element, String name) {
+		String value = element.getAttribute(name);
+		return value.length() > 0 ? value : null;
+	}
+
+	private static float getFloat(org.w3c.dom.Element element, String name, float defaultValue) {
+
+		String value = element.getAttribute(name);
+		if (value.length() > 0) {
+			try {
+				return Float.parseFloat(value);
+			} catch (NumberFormatException e) {
+				return defaultValue;
+			}
+		}
+
+		return defaultValue;
+
+	}
+
+	private static int getInt(org.w3c.dom.Element element, String name, int defaultValue) {
+		return (int) getFloat(element, name, defaultValue);
+	}
+
+	private static Color getColor(org.w3c.dom.Element element, String name) {
+
+		String value = element.getAttribute(name);
+		if (value.length() == 7 && value.startsWith("#")) {
+			try {
+				return new Color(Integer.parseInt(value.substring(1), 16));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		return null;
+
+	}
+
+	// Padding is one value for all sides or top, right, bottom and left
+	private static float[] getPadding(org.w3c.dom.Element element, String name) {
+
+		float[] padding = new float[4];
+
+		String value = element.getAttribute(name);
+		if (value.length() > 0) {
+
+			String[] parts = value.trim().split("\\s+");
+			try {
+				for (int i = 0; i < padding.length; i++) {
+					padding[i] = Float.parseFloat(parts[parts.length == 4 ? i : 0]);
+				}
+			} catch (NumberFormatException e) {
+				return new float[4];
+			}
+
+		}
+
+		return padding;
+
+	}
+
+	private static int getAlignment(org.w3c.dom.Element element) {
+
+		String value = element.getAttribute("alignment");
+		if ("right".equals(value)) {
+			return Element.ALIGN_RIGHT;
+		} else if ("center".equals(value)) {
+			return Element.ALIGN_CENTER;
+		} else if ("justified".equals(value) || "justify".equals(value)) {
+			return Element.ALIGN_JUSTIFIED;
+		} else {
+			return Element.ALIGN_LEFT;
+		}
+
+	}
+
+	private static TextModel readText(org.w3c.dom.Element element) {
+
+		org.w3c.dom.Element textElement = getChild(element, "text");
+		String text = textElement != null ? textElement.getTextContent() : "";
+
+		List<StyleModel> styles = new ArrayList<>();
+		for (org.w3c.dom.Element styleElement : getChildren(element, "styles", "style")) {
+
+			StyleModel style = new StyleModel(getInt(styleElement, "start", 0), getInt(styleElement, "end", 0));
+			style.fontSize = getFloat(styleElement, "fontSize", DEFAULT_FONT_SIZE);
+			style.bold = "true".equals(styleElement.getAttribute("bold"));
+			style.italic = "true".equals(styleElement.getAttribute("italic"));
+			style.foreground = getColor(styleElement, "foreground");
+			style.spaceAbove = getFloat(styleElement, "spaceAbove", 0.0F);
+			style.source = getString(styleElement, "source");
+			styles.add(style);
+
+		}
+
+		Collections.sort(styles, new Comparator<StyleModel>() {
+
+			@Override
+			public int compare(StyleModel style1, StyleModel style2) {
+				return Integer.compare(style1.start, style2.start);
+			}
+		});
+
+		return new TextModel(text, styles);
+
+	}
+
+	private static PageModel readPage(org.w3c.dom.Element pageElement) {
+
+		if (pageElement == null) {
+			return null;
+		}
+
+		List<ElementModel> elements = new ArrayList<>();
+		for (org.w3c.dom.Element element : getChildren(pageElement, "elements", "element")) {
+
+			String type = element.getAttribute("type");
+			ElementModel model;
+
+			if ("TextBox".equals(type)) {
+				model = new TextBoxModel(readText(element), getAlignment(element), getPadding(element, "padding"));
+			} else if ("Table".equals(type)) {
+				model = readTable(element);
+			} else if ("Image".equals(type)) {
+				model = new ImageModel(getString(element, "src"), getString(element, "fit"));
+			} else {
+				continue; // Not supported (yet), the other elements are still rendered
+			}
+
+			model.x = getFloat(element, "x", 0.0F);
+			model.y = getFloat(element, "y", 0.0F);
+			model.width = getFloat(element, "width", 0.0F);
+			model.height = getFloat(element, "height", 0.0F);
+			model.autoHeight = "auto".equals(element.getAttribute("heightPolicy"));
+			elements.add(model);
+
+		}
+
+		// Elements are laid out from top to bottom
+		Collections.sort(elements, new Comparator<ElementModel>() {
+
+			@Override
+			public int compare(ElementModel element1, ElementModel element2) {
+				return Float.compare(element1.y, element2.y);
+			}
+		});
+
+		return new PageModel(getFloat(pageElement, "width", PageSize.A4.getWidth()), getFloat(pageElement, "height", PageSize.A4.getHeight()), getString(pageElement, "visible"), elements);
+
+	}
+
+	private static TableModel readTable(org.w3c.dom.Element element) {
+
+		TableModel table = new TableModel(getPadding(element, "cellPadding"), getInt(element, "headerRows", 0));
+
+		for (org.w3c.dom.Element border : getChildren(element, "borders", "border")) {
+			table.borderTypes.add(border.getAttribute("type"));
+			table.borderColor = getColor(border, "color");
+			table.borderWidth = getFloat(border, "width", 1.0F);
+		}
+
+		for (org.w3c.dom.Element colStyle : getChildren(element, "colStyles", "colStyle")) {
+			int col = getInt(colStyle, "col", 0);
+			table.colWidths.put(col, getFloat(colStyle, "width", 0.0F));
+			table.colCount = Math.max(table.colCount, col);
+		}
+
+		for (org.w3c.dom.Element rowStyle : getChildren(element, "rowStyles", "rowStyle")) {
+			table.rowStyles.add(new RowStyleModel(getInt(rowStyle, "row", 0), getInt(rowStyle, "repeat", 0), getColor(rowStyle, "background")));
+		}
+
+		for (org.w3c.dom.Element cellElement : getChildren(element, "cells", "cell")) {
+
+			CellModel cell = new CellModel(getInt(cellElement, "row", 1), getInt(cellElement, "col", 1), getAlignment(cellElement), readText(cellElement));
+
+			Map<Integer, CellModel> row = table.cells.get(cell.row);
+			if (row == null) {
+				row = new HashMap<>();
+				table.cells.put(cell.row, row);
+			}
+			row.put(cell.col, cell);
+
+			table.rowCount = Math.max(table.rowCount, cell.row);
+			table.colCount = Math.max(table.colCount, cell.col);
+
+		}
+
+		table.colCount = Math.max(1, table.colCount);
+
+		return table;
+
+	}
+
+	// Document model of a .gpdx file, immutable after loading so it can be shared by all renders
+	public static class GpdxDocument {
+
+		private final PageModel header;
+		private final PageModel footer;
+		private final float minHeight;
+		private final List<PageModel> pages = new ArrayList<>();
+		private final Map<String, byte[]> images;
+
+		private GpdxDocument(org.w3c.dom.Element content, Map<String, byte[]> images) {
+
+			org.w3c.dom.Element root = getChild(content, "root");
+
+			header = readPage(getChild(root, "header"));
+			footer = readPage(getChild(root, "footer"));
+
+			org.w3c.dom.Element pagination = getChild(root, "pagination");
+			minHeight = pagination != null ? getFloat(pagination, "minHeight", DEFAULT_MIN_HEIGHT) : DEFAULT_MIN_HEIGHT;
+
+			for (org.w3c.dom.Element page : getChildren(root, "pages", "page")) {
+				pages.add(readPage(page));
+			}
+
+			this.images = images;
+
+		}
+
+		public int getPageCount() {
+			return pages.size();
+		}
+
+	}
+
+	private static class PageModel {
+
+		private final float width;
+		private final float height;
+		private final String visible;
+		private final List<ElementModel> elements;
+
+		private PageModel(float width, float height, String visible, List<ElementModel> elements) {
+			this.width = width;
+			this.height = height;
+			this.visible = visible;
+			this.elements = elements;
+		}
+
+	}
+
+	private static abstract class ElementModel {
+
+		protected float x;
+		protected float y;
+		protected float width;
+		protected float height;
+		protected boolean autoHeight;
+
+	}
+
+	private static class TextBoxModel extends ElementModel {
+
+		private final TextModel text;
+		private final int alignment;
+		private final float[] padding;
+
+		private TextBoxModel(TextModel text, int alignment, float[] padding) {
+			this.text = text;
+			this.alignment = alignment;
+			this.padding = padding;
+		}
+
+	}
+
+	private static class ImageModel extends ElementModel {
+
+		private final String src;
+		private final String fit;
+
+		private ImageModel(String src, String fit) {
+			this.src = src;
+			this.fit = fit;
+		}
+
+	}
+
+	private static class TableModel extends ElementModel {
+
+		private final float[] padding;
+		private final int headerRows;
+		private final List<String> borderTypes = new ArrayList<>();
+		private Color borderColor = null;
+		private float borderWidth = 1.0F;
+		private final Map<Integer, Float> colWidths = new HashMap<>();
+		private final List<RowStyleModel> rowStyles = new ArrayList<>();
+		private final Map<Integer, Map<Integer, CellModel>> cells = new HashMap<>();
+		private int rowCount = 0;
+		private int colCount = 0;
+
+		private TableModel(float[] padding, int headerRows) {
+			this.padding = padding;
+			this.headerRows = headerRows;
+		}
+
+		// Row styles use the index of the rendered row (starting at 0), a style with repeat n is used for every n-th row
+		private Color getBackground(int row) {
+
+			Color background = null;
+			for (RowStyleModel rowStyle : rowStyles) {
+				if (row == rowStyle.row || (rowStyle.repeat > 0 && row > rowStyle.row && (row - rowStyle.row) % rowStyle.repeat == 0)) {
+					background = rowStyle.background;
+				}
+			}
+
+			return background;
+
+		}
+
+		private int getBorder(int row, int col) {
+
+			int border = Rectangle.NO_BORDER;
+			for (String type : borderTypes) {
+				if ("vertical".equals(type) && col > 1) {
+					border |= Rectangle.LEFT;
+				} else if ("horizontal".equals(type) && row > 0) {
+					border |= Rectangle.TOP;
+				} else if ("all".equals(type)) {
+					border |= Rectangle.BOX;
+				}
+			}
+
+			return border;
+
+		}
+
+	}
+
+	private static class RowStyleModel {
+
+		private final int row;
+		private final int repeat;
+		private final Color background;
+
+		private RowStyleModel(int row, int repeat, Color background) {
+			this.row = row;
+			this.repeat = repeat;
+			this.background = background;
+		}
+
+	}
+
+	private static class CellModel {
+
+		private final int row;
+		private final int col;
+		private final int alignment;
+		private final TextModel text;
+
+		private CellModel(int row, int col, int alignment, TextModel text) {
+			this.row = row;
+			this.col = col;
+			this.alignment = alignment;
+			this.text = text;
+		}
+
+	}
+
+	private static class TextModel {
+
+		private final String text;
+		private final List<StyleModel> styles;
+
+		private TextModel(String text, List<StyleModel> styles) {
+			this.text = text;
+			this.styles = styles;
+		}
+
+	}
+
+	private static class StyleModel {
+
+		private final int start;
+		private final int end;
+		private float fontSize = DEFAULT_FONT_SIZE;
+		private boolean bold = false;
+		private boolean italic = false;
+		private Color foreground = null;
+		private float spaceAbove = 0.0F;
+		private String source = null;
+
+		private StyleModel(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+	}
+
+	// Values of the fields for one page, page numbers are only known when all pages are laid out (0 before that)
+	private static class FieldValues {
+
+		private final IFieldContext context;
+		private final int page;
+		private final int pageCount;
+
+		private FieldValues(IFieldContext context, int page, int pageCount) {
+			this.context = context;
+			this.page = page;
+			this.pageCount = pageCount;
+		}
+
+		// Returns null if the text of the template must be kept
+		private String getValue(String source, int listIndex) {
+
+			if (source.startsWith(DYNAMIC_FIELD_PREFIX)) {
+
+				String key = source.substring(DYNAMIC_FIELD_PREFIX.length());
+				if (PAGE_FIELD.equals(key)) {
+					return Integer.toString(page);
+				} else if (PAGES_FIELD.equals(key)) {
+					return Integer.toString(pageCount);
+				}
+
+			} else if (source.startsWith(TEMPLATE_FIELD_PREFIX) && context != null) {
+
+				String key = source.substring(TEMPLATE_FIELD_PREFIX.length());
+
+				if (listIndex >= 0) {
+					List<String> list = context.getList(key);
+					if (list != null) {
+						return listIndex < list.size() ? list.get(listIndex) : context.getDefaultValue();
+					}
+				}
+
+				return context.getString(key);
+
+			}
+
+			return null;
+
+		}
+
+	}
+
+	private static class RenderedPage {
+
+		private final float width;
+		private final float height;
+		private final List<DrawOperation> operations = new ArrayList<>();
+
+		private RenderedPage(PageModel page) {
+			this.width = page.width;
+			this.height = page.height;
+		}
+
+	}
+
+	private static interface DrawOperation {
+
+		public void draw(PdfContentByte canvas, float pageHeight) throws IOException;
+
+	}
+
+}
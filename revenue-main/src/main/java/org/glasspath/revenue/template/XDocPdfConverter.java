@@ -0,0 +1,174 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.template;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.glasspath.aerialist.IFieldContext;
+import org.glasspath.revenue.template.GpdxPdfRenderer.GpdxDocument;
+
+import fr.opensagres.xdocreport.converter.ConverterRegistry;
+import fr.opensagres.xdocreport.converter.ConverterTypeTo;
+import fr.opensagres.xdocreport.converter.ConverterTypeVia;
+import fr.opensagres.xdocreport.converter.IConverter;
+import fr.opensagres.xdocreport.converter.Options;
+import fr.opensagres.xdocreport.core.document.DocumentKind;
+import fr.opensagres.xdocreport.document.IXDocReport;
+import fr.opensagres.xdocreport.template.IContext;
+
+// Converts .docx (Apache POI) and .odt (ODFDOM) documents to pdf in-process, no Word or LibreOffice process
+// is needed so this also works on headless (Linux) machines and can be used from many threads at once. The
+// layout is not always identical to the office applications, complex documents can still be converted with
+// WordUtils or WriterUtils. Aerialist (.gpdx) documents are rendered by GpdxPdfRenderer.
+@SuppressWarnings("nls")
+public class XDocPdfConverter {
+
+	public static final String PDF_EXTENSION = "pdf";
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private XDocPdfConverter() {
+
+	}
+
+	public static boolean isSupported(File file) {
+		return getDocumentKind(file) != null || GpdxPdfRenderer.isSupported(file);
+	}
+
+	// Merges the context into the (prepared) template and writes the result directly as pdf
+	public static void exportToPdf(IXDocReport report, IContext context, File pdfFile) throws Exception {
+
+		Options options = Options.getTo(ConverterTypeTo.PDF).via(getConverterTypeVia(report.getKind()));
+
+		writeToPdf(pdfFile, new PdfWriter() {
+
+			@Override
+			public void write(OutputStream out) throws Exception {
+				report.convert(context, options, out);
+			}
+		});
+
+	}
+
+	// Fills the fields of the (loaded) Aerialist template from the context and writes the result as pdf
+	public static void exportToPdf(GpdxDocument document, IFieldContext context, File pdfFile) throws Exception {
+
+		writeToPdf(pdfFile, new PdfWriter() {
+
+			@Override
+			public void write(OutputStream out) throws Exception {
+				GpdxPdfRenderer.exportToPdf(document, context, out);
+			}
+		});
+
+	}
+
+	public static void exportToPdf(File documentFile, File pdfFile) throws Exception {
+
+		// Aerialist documents which were exported from a template already contain the values of the fields
+		if (GpdxPdfRenderer.isSupported(documentFile)) {
+			exportToPdf(GpdxPdfRenderer.load(documentFile), null, pdfFile);
+			return;
+		}
+
+		DocumentKind documentKind = getDocumentKind(documentFile);
+		if (documentKind == null) {
+			throw new IllegalArgumentException("Unsupported document: " + documentFile.getName());
+		}
+
+		Options options = Options.getFrom(documentKind).to(ConverterTypeTo.PDF).via(getConverterTypeVia(documentKind.name()));
+
+		IConverter converter = ConverterRegistry.getRegistry().getConverter(options);
+		if (converter == null) {
+			throw new IllegalStateException("No pdf converter found for " + documentKind.name());
+		}
+
+		writeToPdf(pdfFile, new PdfWriter() {
+
+			@Override
+			public void write(OutputStream out) throws Exception {
+				try (InputStream in = new BufferedInputStream(new FileInputStream(documentFile), BUFFER_SIZE)) {
+					converter.convert(in, out, options);
+				}
+			}
+		});
+
+	}
+
+	private static void writeToPdf(File pdfFile, PdfWriter writer) throws Exception {
+
+		File tempFile = new File(pdfFile.getParentFile(), pdfFile.getName() + ".tmp");
+
+		try {
+
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE)) {
+				writer.write(out);
+			}
+
+			Files.move(tempFile.toPath(), pdfFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		} finally {
+			tempFile.delete();
+		}
+
+	}
+
+	private static DocumentKind getDocumentKind(File file) {
+
+		switch (TemplateFiles.getFileType(file)) {
+
+		case TemplateFiles.FILE_TYPE_DOCX:
+			return DocumentKind.DOCX;
+
+		case TemplateFiles.FILE_TYPE_ODT:
+			return DocumentKind.ODT;
+
+		default:
+			return null;
+
+		}
+
+	}
+
+	private static ConverterTypeVia getConverterTypeVia(String documentKind) {
+		if (DocumentKind.ODT.name().equals(documentKind)) {
+			return ConverterTypeVia.ODFDOM;
+		} else {
+			return ConverterTypeVia.XWPF;
+		}
+	}
+
+	private static interface PdfWriter {
+
+		public void write(OutputStream out) throws Exception;
+
+	}
+
+}
@@ -0,0 +1,286 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fr.opensagres.xdocreport.document.IXDocReport;
+import fr.opensagres.xdocreport.document.registry.XDocReportRegistry;
+import fr.opensagres.xdocreport.template.TemplateEngineKind;
+import fr.opensagres.xdocreport.template.formatter.FieldsMetadata;
+
+// Cache of prepared XDocReport templates (loaded, fields metadata added and preprocessed), generating a
+// document from a cached template only merges the data, so a batch of documents parses the template once.
+// Templates are cached by type and path, a template which was changed on disk (modification time or size)
+// is loaded again. When the cache is full the least recently used template is removed, removed templates
+// are also unregistered from the XDocReport registry (which would otherwise keep them forever). A report
+// is in use from getReport() until release(), a removed report is only unregistered when it's not in use.
+public class XDocReportCache {
+
+	public static final int TEMPLATE_TYPE_INVOICE = 0;
+	public static final int TEMPLATE_TYPE_REPORT = 1;
+	public static final int TEMPLATE_TYPE_TIME_SHEET = 2;
+
+	public static final int DEFAULT_MAX_REPORTS = 8;
+
+	private static XDocReportCache instance = null;
+
+	private final LinkedHashMap<String, CachedReport> reports;
+	private final Map<IXDocReport, CachedReport> loadedReports = new IdentityHashMap<>();
+	private long hitCount = 0;
+	private long loadCount = 0;
+
+	public XDocReportCache(final int maxReports) {
+
+		reports = new LinkedHashMap<String, CachedReport>(16, 0.75F, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedReport> eldest) {
+
+				if (size() > maxReports) {
+					evict(eldest.getValue());
+					return true;
+				}
+
+				return false;
+
+			}
+		};
+
+	}
+
+	public static synchronized XDocReportCache getInstance() {
+
+		if (instance == null) {
+			instance = new XDocReportCache(DEFAULT_MAX_REPORTS);
+		}
+
+		return instance;
+
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getLoadCount() {
+		return loadCount;
+	}
+
+	public synchronized int size() {
+		return reports.size();
+	}
+
+	// The returned report is shared, it can be processed by more than one thread at the same time but it must not be modified.
+	// Every call must be followed by a call to release() when the report is no longer used. Only callers which need the same
+	// template wait for each other while it's loaded.
+	public IXDocReport getReport(int type, File template, FieldsMetadataProvider fieldsMetadataProvider) throws Exception {
+
+		String key = type + ":" + template.getAbsolutePath(); //$NON-NLS-1$
+		long lastModified = template.lastModified();
+		long size = template.length();
+
+		CachedReport cachedReport;
+
+		synchronized (this) {
+
+			cachedReport = reports.get(key);
+			if (cachedReport != null && cachedReport.report != null && (cachedReport.lastModified != lastModified || cachedReport.size != size)) {
+
+				// Template was edited
+				reports.remove(key);
+				evict(cachedReport);
+				cachedReport = null;
+
+			}
+
+			if (cachedReport == null) {
+				cachedReport = new CachedReport(lastModified, size);
+				reports.put(key, cachedReport);
+			}
+
+			cachedReport.useCount++;
+
+		}
+
+		try {
+
+			synchronized (cachedReport) {
+
+				if (cachedReport.report != null) {
+
+					synchronized (this) {
+						hitCount++;
+					}
+
+					return cachedReport.report;
+
+				}
+
+				IXDocReport report = load(template, fieldsMetadataProvider);
+
+				synchronized (this) {
+					cachedReport.report = report;
+					loadedReports.put(report, cachedReport);
+					loadCount++;
+				}
+
+				return report;
+
+			}
+
+		} catch (Exception e) {
+
+			synchronized (this) {
+
+				cachedReport.useCount--;
+
+				// The next call tries again
+				if (cachedReport.report == null && reports.get(key) == cachedReport) {
+					reports.remove(key);
+				}
+
+			}
+
+			throw e;
+
+		}
+
+	}
+
+	private static IXDocReport load(File template, FieldsMetadataProvider fieldsMetadataProvider) throws Exception {
+
+		IXDocReport report;
+		try (InputStream in = new FileInputStream(template)) {
+			report = XDocReportRegistry.getRegistry().loadReport(in, TemplateEngineKind.Velocity);
+		}
+
+		try {
+
+			FieldsMetadata metadata = report.createFieldsMetadata();
+			fieldsMetadataProvider.addFields(metadata);
+
+			// Otherwise the first call to process() does this, possibly on more than one thread at the same time
+			report.preprocess();
+
+		} catch (Exception e) {
+			XDocReportRegistry.getRegistry().unregisterReport(report);
+			throw e;
+		}
+
+		return report;
+
+	}
+
+	// Called once for every call to getReport(), a report which was removed from the cache while it was in use is unregistered now
+	public synchronized void release(IXDocReport report) {
+
+		CachedReport cachedReport = loadedReports.get(report);
+		if (cachedReport != null && cachedReport.useCount > 0) {
+
+			cachedReport.useCount--;
+
+			if (cachedReport.removed && cachedReport.useCount == 0) {
+				unregister(cachedReport);
+			}
+
+		}
+
+	}
+
+	public synchronized void invalidate(File template) {
+
+		String path = template.getAbsolutePath();
+
+		Iterator<Map.Entry<String, CachedReport>> iterator = reports.entrySet().iterator();
+		while (iterator.hasNext()) {
+
+			Map.Entry<String, CachedReport> entry = iterator.next();
+			if (entry.getKey().endsWith(":" + path)) { //$NON-NLS-1$
+				evict(entry.getValue());
+				iterator.remove();
+			}
+
+		}
+
+	}
+
+	public synchronized void clear() {
+
+		for (CachedReport cachedReport : reports.values()) {
+			evict(cachedReport);
+		}
+
+		reports.clear();
+
+	}
+
+	// Must be called with the lock of the cache, the caller removes the report from the map
+	private void evict(CachedReport cachedReport) {
+
+		cachedReport.removed = true;
+
+		if (cachedReport.useCount == 0) {
+			unregister(cachedReport);
+		}
+
+	}
+
+	private void unregister(CachedReport cachedReport) {
+		if (cachedReport.report != null) {
+			loadedReports.remove(cachedReport.report);
+			XDocReportRegistry.getRegistry().unregisterReport(cachedReport.report);
+		}
+	}
+
+	private static class CachedReport {
+
+		private final long lastModified;
+		private final long size;
+		private IXDocReport report = null;
+		private int useCount = 0;
+		private boolean removed = false;
+
+		private CachedReport(long lastModified, long size) {
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+
+	}
+
+	public static interface FieldsMetadataProvider {
+
+		// Called once when the template is loaded
+		public void addFields(FieldsMetadata metadata);
+
+	}
+
+}
@@ -0,0 +1,352 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.template.invoice;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glasspath.common.Common;
+import org.glasspath.revenue.ProjectUtils;
+import org.glasspath.revenue.template.GpdxPdfRenderer;
+import org.glasspath.revenue.template.GpdxPdfRenderer.GpdxDocument;
+import org.glasspath.revenue.template.VelocityTemplateFieldContext;
+import org.glasspath.revenue.template.XDocReportCache;
+import org.glasspath.revenue.template.XDocPdfConverter;
+
+import fr.opensagres.xdocreport.document.IXDocReport;
+import fr.opensagres.xdocreport.template.IContext;
+
+// Generates a batch of invoices from one .docx/.odt/.gpdx template on a bounded pool of worker threads. The template
+// is prepared once (see XDocReportCache) and shared by all jobs, every job fills its own field context. Documents
+// are written to a temp file which is moved into place when complete, a failed document doesn't stop the batch.
+// With pdf output enabled the documents are converted in-process (see XDocPdfConverter) instead of written
+// as .docx/.odt, .gpdx templates are always rendered to pdf (see GpdxPdfRenderer). render() blocks until the
+// batch is finished, so it must not be called on the EDT.
+@SuppressWarnings("nls")
+public class InvoiceBatchRenderer {
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File template;
+	private final File outputDir;
+	private final int threadCount;
+	private boolean pdfOutput = false;
+	private volatile boolean cancelled = false;
+
+	public InvoiceBatchRenderer(File template, File outputDir) {
+		this(template, outputDir, Runtime.getRuntime().availableProcessors());
+	}
+
+	public InvoiceBatchRenderer(File template, File outputDir, int threadCount) {
+		this.template = template;
+		this.outputDir = outputDir;
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	// Invoices are written to the invoices dir of the project
+	public static InvoiceBatchRenderer create(File template, String contentXmlPath) {
+
+		File projectDir = ProjectUtils.getProjectDir(contentXmlPath);
+		if (projectDir == null) {
+			throw new IllegalArgumentException("Invalid project: " + contentXmlPath);
+		}
+
+		return new InvoiceBatchRenderer(template, new File(projectDir, ProjectUtils.INVOICES_DIR));
+
+	}
+
+	public File getTemplate() {
+		return template;
+	}
+
+	public File getOutputDir() {
+		return outputDir;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public boolean isPdfOutput() {
+		return pdfOutput;
+	}
+
+	public void setPdfOutput(boolean pdfOutput) {
+		this.pdfOutput = pdfOutput;
+	}
+
+	// Documents which are not started yet are skipped (reported with a null file and exception)
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public List<RenderResult> render(List<? extends InvoiceDocument> documents, final BatchListener listener) throws Exception {
+
+		// Template errors are reported once instead of for every document
+		final GpdxDocument gpdxDocument;
+		final IXDocReport report;
+		if (GpdxPdfRenderer.isSupported(template)) {
+			gpdxDocument = GpdxPdfRenderer.load(template);
+			report = null;
+		} else {
+			gpdxDocument = null;
+			report = InvoiceTemplateUtils.prepareXDocReport(template);
+		}
+
+		outputDir.mkdirs();
+
+		final String extension = pdfOutput || gpdxDocument != null ? XDocPdfConverter.PDF_EXTENSION : getExtension(template);
+		final int totalCount = documents.size();
+		final RenderResult[] results = new RenderResult[totalCount];
+		final AtomicInteger completedCount = new AtomicInteger();
+		final CountDownLatch finished = new CountDownLatch(totalCount);
+
+		ThreadPoolExecutor executor = createExecutor(Math.min(threadCount, Math.max(1, totalCount)));
+
+		try {
+
+			for (int i = 0; i < totalCount; i++) {
+
+				final int index = i;
+				final InvoiceDocument document = documents.get(i);
+
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+
+						RenderResult result;
+						if (cancelled) {
+							result = new RenderResult(document, null, 0L, null);
+						} else {
+							result = render(report, gpdxDocument, document, extension);
+						}
+
+						results[index] = result;
+
+						try {
+							if (listener != null) {
+								listener.documentRendered(result, completedCount.incrementAndGet(), totalCount);
+							}
+						} catch (Exception e) {
+							Common.LOGGER.error("Exception in batch listener", e);
+						} finally {
+							finished.countDown();
+						}
+
+					}
+				});
+
+			}
+
+			finished.await();
+
+		} catch (InterruptedException e) {
+			cancelled = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
+			if (report != null) {
+				XDocReportCache.getInstance().release(report);
+			}
+		}
+
+		List<RenderResult> resultList = new ArrayList<>(totalCount);
+		for (int i = 0; i < totalCount; i++) {
+			resultList.add(results[i] != null ? results[i] : new RenderResult(documents.get(i), null, 0L, null));
+		}
+
+		return Collections.unmodifiableList(resultList);
+
+	}
+
+	private RenderResult render(IXDocReport report, GpdxDocument gpdxDocument, InvoiceDocument document, String extension) {
+
+		long start = System.currentTimeMillis();
+
+		File file = new File(outputDir, document.getFileName() + "." + extension);
+		File tempFile = new File(outputDir, document.getFileName() + "." + extension + ".tmp");
+
+		try {
+
+			VelocityTemplateFieldContext fieldContext = new VelocityTemplateFieldContext();
+			document.populate(fieldContext);
+
+			if (gpdxDocument != null) {
+				XDocPdfConverter.exportToPdf(gpdxDocument, fieldContext, file);
+				return new RenderResult(document, file, System.currentTimeMillis() - start, null);
+			}
+
+			IContext context = report.createContext();
+			for (Object key : fieldContext.getKeys()) {
+				context.put(key.toString(), fieldContext.get(key.toString()));
+			}
+
+			if (pdfOutput) {
+				XDocPdfConverter.exportToPdf(report, context, file);
+			} else {
+
+				try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE)) {
+					report.process(context, out);
+				}
+
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			}
+
+			return new RenderResult(document, file, System.currentTimeMillis() - start, null);
+
+		} catch (Exception e) {
+
+			tempFile.delete();
+			Common.LOGGER.error("Exception while generating invoice " + file.getName(), e);
+
+			return new RenderResult(document, null, System.currentTimeMillis() - start, e);
+
+		}
+
+	}
+
+	private ThreadPoolExecutor createExecutor(int poolSize) {
+
+		final AtomicInteger threadNumber = new AtomicInteger();
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(poolSize * 2), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+
+				Thread thread = new Thread(runnable, "Invoice renderer " + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+
+				return thread;
+
+			}
+		}, new RejectedExecutionHandler() {
+
+			@Override
+			public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+
+				// Queue is full, wait for a free slot so the batch never holds more jobs than a few per thread
+				try {
+					executor.getQueue().put(runnable);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException(e);
+				}
+
+			}
+		});
+
+		return executor;
+
+	}
+
+	private static String getExtension(File file) {
+
+		String name = file.getName();
+
+		int index = name.lastIndexOf('.');
+		if (index > 0) {
+			return name.substring(index + 1).toLowerCase();
+		}
+
+		return "docx";
+
+	}
+
+	public static interface InvoiceDocument {
+
+		// Name of the generated file, without extension
+		public String getFileName();
+
+		// Called on a worker thread, must only read data which isn't changed while the batch runs
+		public void populate(VelocityTemplateFieldContext context) throws Exception;
+
+	}
+
+	public static class RenderResult {
+
+		private final InvoiceDocument document;
+		private final File file;
+		private final long duration;
+		private final Exception exception;
+
+		public RenderResult(InvoiceDocument document, File file, long duration, Exception exception) {
+			this.document = document;
+			this.file = file;
+			this.duration = duration;
+			this.exception = exception;
+		}
+
+		public InvoiceDocument getDocument() {
+			return document;
+		}
+
+		// Null if the document failed or was skipped
+		public File getFile() {
+			return file;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+
+		public Exception getException() {
+			return exception;
+		}
+
+		public boolean isSuccessful() {
+			return file != null;
+		}
+
+	}
+
+	public static interface BatchListener {
+
+		// Called on the worker thread, use SwingUtilities.invokeLater() to update the UI
+		public void documentRendered(RenderResult result, int completedCount, int totalCount);
+
+	}
+
+}
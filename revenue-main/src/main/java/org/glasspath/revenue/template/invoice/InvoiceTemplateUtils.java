@@ -23,7 +23,6 @@
 package org.glasspath.revenue.template.invoice;
 
 import java.io.File;
-import java.io.FileInputStream;
 
 import javax.swing.JMenu;
 
@@ -47,10 +46,9 @@ import org.glasspath.common.swing.resources.CommonResources;
 import org.glasspath.revenue.resources.Resources;
 import org.glasspath.revenue.template.KeyUtils;
 import org.glasspath.revenue.template.TemplateUtils;
+import org.glasspath.revenue.template.XDocReportCache;
 
 import fr.opensagres.xdocreport.document.IXDocReport;
-import fr.opensagres.xdocreport.document.registry.XDocReportRegistry;
-import fr.opensagres.xdocreport.template.TemplateEngineKind;
 import fr.opensagres.xdocreport.template.formatter.FieldsMetadata;
 
 public class InvoiceTemplateUtils extends KeyUtils {
@@ -364,11 +362,20 @@ public class InvoiceTemplateUtils extends KeyUtils {
 
 	}
 
+	// Returns the cached report of the template, it's shared with other callers (also on other threads) and must
+	// not be modified, release it with XDocReportCache.getInstance().release() when the invoices are generated
 	public static IXDocReport prepareXDocReport(File template) throws Exception {
+		return XDocReportCache.getInstance().getReport(XDocReportCache.TEMPLATE_TYPE_INVOICE, template, new XDocReportCache.FieldsMetadataProvider() {
 
-		IXDocReport xDocReport = XDocReportRegistry.getRegistry().loadReport(new FileInputStream(template), TemplateEngineKind.Velocity);
+			@Override
+			public void addFields(FieldsMetadata metadata) {
+				addInvoiceXDocMetadata(metadata);
+			}
+		});
+	}
+
+	public static void addInvoiceXDocMetadata(FieldsMetadata metadata) {
 
-		FieldsMetadata metadata = xDocReport.createFieldsMetadata();
 		metadata.addFieldAsList(invoiceLineKey(DESCRIPTION));
 		metadata.addFieldAsList(invoiceLineKey(QUANTITY));
 		metadata.addFieldAsList(invoiceLineKey(PRICE));
@@ -384,8 +391,6 @@ public class InvoiceTemplateUtils extends KeyUtils {
 		TemplateUtils.addMileageXDocMetadata(metadata);
 		TemplateUtils.addCallXDocMetadata(metadata);
 
-		return xDocReport;
-
 	}
 
 }
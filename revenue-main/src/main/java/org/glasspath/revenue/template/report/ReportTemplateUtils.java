@@ -23,7 +23,6 @@
 package org.glasspath.revenue.template.report;
 
 import java.io.File;
-import java.io.FileInputStream;
 
 import javax.swing.JMenu;
 
@@ -45,10 +44,9 @@ import org.glasspath.aerialist.template.TemplateMetadata.FieldMetadata;
 import org.glasspath.aerialist.template.TemplateMetadata.TableMetadata;
 import org.glasspath.revenue.template.KeyUtils;
 import org.glasspath.revenue.template.TemplateUtils;
+import org.glasspath.revenue.template.XDocReportCache;
 
 import fr.opensagres.xdocreport.document.IXDocReport;
-import fr.opensagres.xdocreport.document.registry.XDocReportRegistry;
-import fr.opensagres.xdocreport.template.TemplateEngineKind;
 import fr.opensagres.xdocreport.template.formatter.FieldsMetadata;
 
 @SuppressWarnings("nls")
@@ -672,11 +670,20 @@ public class ReportTemplateUtils extends KeyUtils {
 
 	}
 
+	// The report is cached and shared with other callers, it must not be modified and must be released with
+	// XDocReportCache.getInstance().release() when the report is generated
 	public static IXDocReport prepareXDocReport(File template) throws Exception {
+		return XDocReportCache.getInstance().getReport(XDocReportCache.TEMPLATE_TYPE_REPORT, template, new XDocReportCache.FieldsMetadataProvider() {
 
-		IXDocReport xDocReport = XDocReportRegistry.getRegistry().loadReport(new FileInputStream(template), TemplateEngineKind.Velocity);
+			@Override
+			public void addFields(FieldsMetadata metadata) {
+				addReportXDocMetadata(metadata);
+			}
+		});
+	}
+
+	public static void addReportXDocMetadata(FieldsMetadata metadata) {
 
-		FieldsMetadata metadata = xDocReport.createFieldsMetadata();
 		metadata.addFieldAsList(invoiceKey(NUMBER));
 		metadata.addFieldAsList(invoiceKey(CLIENT));
 		metadata.addFieldAsList(invoiceKey(DESCRIPTION));
@@ -715,8 +722,6 @@ public class ReportTemplateUtils extends KeyUtils {
 		TemplateUtils.addMileageXDocMetadata(metadata);
 		TemplateUtils.addCallXDocMetadata(metadata);
 
-		return xDocReport;
-
 	}
 
 }
@@ -25,7 +25,6 @@ package org.glasspath.revenue.template.timesheet;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.io.File;
-import java.io.FileInputStream;
 
 import javax.swing.JMenu;
 
@@ -49,10 +48,9 @@ import org.glasspath.common.swing.resources.CommonResources;
 import org.glasspath.revenue.resources.Resources;
 import org.glasspath.revenue.template.KeyUtils;
 import org.glasspath.revenue.template.TemplateUtils;
+import org.glasspath.revenue.template.XDocReportCache;
 
 import fr.opensagres.xdocreport.document.IXDocReport;
-import fr.opensagres.xdocreport.document.registry.XDocReportRegistry;
-import fr.opensagres.xdocreport.template.TemplateEngineKind;
 import fr.opensagres.xdocreport.template.formatter.FieldsMetadata;
 
 public class TimeSheetTemplateUtils extends KeyUtils {
@@ -290,11 +288,20 @@ public class TimeSheetTemplateUtils extends KeyUtils {
 
 	}
 
+	// The report is cached and shared with other callers, it must not be modified and must be released with
+	// XDocReportCache.getInstance().release() when the time sheet is generated
 	public static IXDocReport prepareXDocReport(File template) throws Exception {
+		return XDocReportCache.getInstance().getReport(XDocReportCache.TEMPLATE_TYPE_TIME_SHEET, template, new XDocReportCache.FieldsMetadataProvider() {
 
-		IXDocReport xDocReport = XDocReportRegistry.getRegistry().loadReport(new FileInputStream(template), TemplateEngineKind.Velocity);
+			@Override
+			public void addFields(FieldsMetadata metadata) {
+				addTimeSheetXDocMetadata(metadata);
+			}
+		});
+	}
+
+	public static void addTimeSheetXDocMetadata(FieldsMetadata metadata) {
 
-		FieldsMetadata metadata = xDocReport.createFieldsMetadata();
 		metadata.addFieldAsList(totalKey(PROJECT));
 		metadata.addFieldAsList(totalKey(HOURS));
 		metadata.addFieldAsList(totalKey(MILEAGE));
@@ -307,8 +314,6 @@ public class TimeSheetTemplateUtils extends KeyUtils {
 		TemplateUtils.addMileageXDocMetadata(metadata);
 		TemplateUtils.addCallXDocMetadata(metadata);
 
-		return xDocReport;
-
 	}
 
 }
@@ -23,6 +23,9 @@
 package org.glasspath.revenue.template.word;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
 import org.glasspath.revenue.template.word.Word.ActiveDocument;
 import org.glasspath.revenue.template.word.Word.Application;
@@ -33,6 +36,11 @@ import com.sun.jna.platform.win32.Ole32;
 
 public class WordUtils {
 
+	public static final String WORD_EXECUTABLE = "winword.exe"; //$NON-NLS-1$
+
+	// Word process of the running exportToPdf() call, conversions with Word run one at a time
+	private static volatile ProcessHandle conversionProcess = null;
+
 	private WordUtils() {
 
 	}
@@ -89,32 +97,52 @@ public class WordUtils {
 
 				inited = true;
 
+				Set<Long> processIds = getWordProcessIds();
+
 				Word word = new Word();
 
-				Application app = word.getApplication();
-				if (app != null) {
+				conversionProcess = findNewWordProcess(processIds);
 
-					word.setVisible(false);
+				try {
 
-					Documents documents = app.getDocuments();
-					if (documents != null) {
+					Application app = word.getApplication();
+					if (app != null) {
 
-						documents.open(docxFile.getAbsolutePath());
+						word.setVisible(false);
+
+						Documents documents = app.getDocuments();
+						if (documents != null) {
+
+							documents.open(docxFile.getAbsolutePath());
 
-						ActiveDocument activeDocument = word.getActiveDocument();
-						if (activeDocument != null) {
+							ActiveDocument activeDocument = word.getActiveDocument();
+							if (activeDocument != null) {
 
-							activeDocument.saveAs(pdfFile.getAbsolutePath(), Word.FILE_TYPE_PDF);
-							activeDocument.close(false);
+								try {
+									activeDocument.saveAs(pdfFile.getAbsolutePath(), Word.FILE_TYPE_PDF);
+								} finally {
+									activeDocument.close(false);
+								}
+
+							}
 
 						}
 
+					} else {
+						// TODO?
 					}
 
-					word.quit();
+				} finally {
+
+					// Also when the conversion failed, otherwise Word keeps running in the background
+					try {
+						word.quit();
+					} catch (Exception e) {
+						killConversionProcess();
+					}
+
+					conversionProcess = null;
 
-				} else {
-					// TODO?
 				}
 
 			} catch (Exception e) {
@@ -129,4 +157,53 @@ public class WordUtils {
 
 	}
 
+	// Kills the Word process of a conversion which hangs (for example on a dialog), the blocked call then fails
+	// with a COM exception. Can be called from any thread, returns false if no conversion was running.
+	public static boolean killConversionProcess() {
+
+		ProcessHandle process = conversionProcess;
+		if (process != null && process.isAlive()) {
+			return process.destroyForcibly();
+		}
+
+		return false;
+
+	}
+
+	private static Set<Long> getWordProcessIds() {
+
+		Set<Long> processIds = new HashSet<>();
+
+		Iterator<ProcessHandle> processes = ProcessHandle.allProcesses().iterator();
+		while (processes.hasNext()) {
+			ProcessHandle process = processes.next();
+			if (isWordProcess(process)) {
+				processIds.add(process.pid());
+			}
+		}
+
+		return processIds;
+
+	}
+
+	// Word is started for every conversion, the new process is the one which was not running before
+	private static ProcessHandle findNewWordProcess(Set<Long> processIds) {
+
+		Iterator<ProcessHandle> processes = ProcessHandle.allProcesses().iterator();
+		while (processes.hasNext()) {
+			ProcessHandle process = processes.next();
+			if (isWordProcess(process) && !processIds.contains(process.pid())) {
+				return process;
+			}
+		}
+
+		return null;
+
+	}
+
+	private static boolean isWordProcess(ProcessHandle process) {
+		String command = process.info().command().orElse(""); //$NON-NLS-1$
+		return command.toLowerCase().endsWith(WORD_EXECUTABLE);
+	}
+
 }
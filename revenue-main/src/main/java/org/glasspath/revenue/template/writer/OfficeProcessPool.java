@@ -0,0 +1,299 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.template.writer;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.glasspath.common.Common;
+import org.jodconverter.core.DocumentConverter;
+import org.jodconverter.core.office.OfficeException;
+import org.jodconverter.core.office.OfficeManager;
+import org.jodconverter.local.LocalConverter;
+import org.jodconverter.local.office.LocalOfficeManager;
+
+// Long-lived pool of office (LibreOffice) processes, started on the first conversion and stopped when idle so
+// a batch of documents pays the office startup once. Every process is restarted after a number of conversions
+// (office slowly leaks memory) and a process which hangs longer than the task timeout is restarted by jodconverter.
+@SuppressWarnings("nls")
+public class OfficeProcessPool {
+
+	public static final int DEFAULT_POOL_SIZE = 2;
+	public static final int DEFAULT_FIRST_PORT = 2002;
+	public static final int DEFAULT_MAX_TASKS_PER_PROCESS = 200;
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000L;
+	public static final long DEFAULT_TASK_TIMEOUT = 2 * 60 * 1000L;
+	public static final long DEFAULT_TASK_QUEUE_TIMEOUT = 10 * 60 * 1000L; // A batch can queue many conversions
+
+	private static OfficeProcessPool instance = null;
+
+	private int poolSize = DEFAULT_POOL_SIZE;
+	private int firstPort = DEFAULT_FIRST_PORT;
+	private int maxTasksPerProcess = DEFAULT_MAX_TASKS_PER_PROCESS;
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private long taskTimeout = DEFAULT_TASK_TIMEOUT;
+	private OfficeManager officeManager = null;
+	private DocumentConverter documentConverter = null;
+	private int activeCount = 0;
+	private long lastUsed = 0L;
+	private long startCount = 0;
+	private long conversionCount = 0;
+	private ScheduledExecutorService idleExecutor = null;
+	private ScheduledFuture<?> idleShutdown = null;
+	private Thread shutdownHook = null;
+
+	public OfficeProcessPool() {
+
+	}
+
+	public static synchronized OfficeProcessPool getInstance() {
+
+		if (instance == null) {
+			instance = new OfficeProcessPool();
+		}
+
+		return instance;
+
+	}
+
+	public synchronized int getPoolSize() {
+		return poolSize;
+	}
+
+	// The pool settings are used when the processes are (re)started
+	public synchronized void setPoolSize(int poolSize) {
+		this.poolSize = Math.max(1, poolSize);
+	}
+
+	public synchronized int getFirstPort() {
+		return firstPort;
+	}
+
+	public synchronized void setFirstPort(int firstPort) {
+		this.firstPort = firstPort;
+	}
+
+	public synchronized int getMaxTasksPerProcess() {
+		return maxTasksPerProcess;
+	}
+
+	public synchronized void setMaxTasksPerProcess(int maxTasksPerProcess) {
+		this.maxTasksPerProcess = maxTasksPerProcess;
+	}
+
+	public synchronized long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public synchronized long getTaskTimeout() {
+		return taskTimeout;
+	}
+
+	public synchronized void setTaskTimeout(long taskTimeout) {
+		this.taskTimeout = taskTimeout;
+	}
+
+	public synchronized boolean isRunning() {
+		return officeManager != null && officeManager.isRunning();
+	}
+
+	public synchronized long getStartCount() {
+		return startCount;
+	}
+
+	public synchronized long getConversionCount() {
+		return conversionCount;
+	}
+
+	// Can be called by more than one thread at the same time, the conversions are queued for the processes of the pool
+	public void convert(File sourceFile, File targetFile) throws OfficeException {
+
+		DocumentConverter converter = acquire();
+
+		try {
+			converter.convert(sourceFile).to(targetFile).execute();
+		} finally {
+			release();
+		}
+
+	}
+
+	private synchronized DocumentConverter acquire() throws OfficeException {
+
+		if (idleShutdown != null) {
+			idleShutdown.cancel(false);
+			idleShutdown = null;
+		}
+
+		// Health check, the pool stops when an office process can't be restarted (for example when office was uninstalled)
+		if (officeManager != null && !officeManager.isRunning()) {
+			Common.LOGGER.error("Office process pool is not running anymore, starting a new pool");
+			stopOfficeManager();
+		}
+
+		if (officeManager == null) {
+			startOfficeManager();
+		}
+
+		activeCount++;
+
+		return documentConverter;
+
+	}
+
+	private synchronized void release() {
+
+		activeCount--;
+		conversionCount++;
+		lastUsed = System.currentTimeMillis();
+
+		if (activeCount == 0 && idleTimeout > 0) {
+			scheduleIdleShutdown();
+		}
+
+	}
+
+	private void startOfficeManager() throws OfficeException {
+
+		int[] portNumbers = new int[poolSize];
+		for (int i = 0; i < portNumbers.length; i++) {
+			portNumbers[i] = firstPort + i;
+		}
+
+		LocalOfficeManager manager = LocalOfficeManager.builder()
+				.install()
+				.portNumbers(portNumbers)
+				.maxTasksPerProcess(maxTasksPerProcess)
+				.taskExecutionTimeout(taskTimeout)
+				.taskQueueTimeout(DEFAULT_TASK_QUEUE_TIMEOUT)
+				.build();
+
+		manager.start();
+
+		officeManager = manager;
+		documentConverter = LocalConverter.make(manager);
+		startCount++;
+
+		if (shutdownHook == null) {
+
+			// Office processes would keep running after the application exits
+			shutdownHook = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					shutdown();
+				}
+			}, "Office process pool shutdown");
+
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+		}
+
+	}
+
+	private void stopOfficeManager() {
+
+		if (officeManager != null) {
+
+			try {
+				officeManager.stop();
+			} catch (OfficeException e) {
+				Common.LOGGER.error("Exception while stopping office processes", e);
+			}
+
+			officeManager = null;
+			documentConverter = null;
+
+		}
+
+	}
+
+	private void scheduleIdleShutdown() {
+
+		if (idleExecutor == null) {
+			idleExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+
+					Thread thread = new Thread(runnable, "Office process pool idle shutdown");
+					thread.setDaemon(true);
+
+					return thread;
+
+				}
+			});
+		}
+
+		idleShutdown = idleExecutor.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				shutdownIfIdle();
+			}
+		}, idleTimeout, TimeUnit.MILLISECONDS);
+
+	}
+
+	private synchronized void shutdownIfIdle() {
+
+		idleShutdown = null;
+
+		if (activeCount == 0 && System.currentTimeMillis() - lastUsed >= idleTimeout) {
+			stopOfficeManager();
+		}
+
+	}
+
+	// Called when a caller gave up waiting for a conversion, the office processes are stopped (conversions which are
+	// still running on them fail) and the next conversion starts new processes
+	public synchronized void restart() {
+
+		if (officeManager != null) {
+			Common.LOGGER.error("Conversion timed out, restarting office processes");
+			shutdown();
+		}
+
+	}
+
+	// Stops the office processes, a new conversion starts them again
+	public synchronized void shutdown() {
+
+		if (idleShutdown != null) {
+			idleShutdown.cancel(false);
+			idleShutdown = null;
+		}
+
+		stopOfficeManager();
+
+	}
+
+}
@@ -24,11 +24,6 @@ package org.glasspath.revenue.template.writer;
 
 import java.io.File;
 
-import org.jodconverter.core.DocumentConverter;
-import org.jodconverter.core.office.OfficeManager;
-import org.jodconverter.local.LocalConverter;
-import org.jodconverter.local.office.LocalOfficeManager;
-
 public class WriterUtils {
 
 	private WriterUtils() {
@@ -37,18 +32,9 @@ public class WriterUtils {
 
 	public static void exportToPdf(File odtFile, File pdfFile) throws Exception {
 
+		// The office processes are kept running for the next conversion, see OfficeProcessPool
 		if (odtFile != null && odtFile.exists() && pdfFile != null) {
-
-			OfficeManager officeManager = LocalOfficeManager.builder().build();
-
-			DocumentConverter documentConverter = LocalConverter.make(officeManager);
-
-			officeManager.start();
-
-			documentConverter.convert(odtFile).to(pdfFile).execute();
-
-			officeManager.stop();
-
+			OfficeProcessPool.getInstance().convert(odtFile, pdfFile);
 		}
 
 	}
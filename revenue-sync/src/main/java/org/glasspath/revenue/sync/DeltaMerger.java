@@ -0,0 +1,206 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.sync;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+// Merges the changes of one device into the sync index, only the entities sent by the device are looked
+// at and only the entities changed since the previous sync of the device are sent back. Entities accepted from
+// the device are not sent back, these are tracked per request so one merger can serve several devices.
+// The index only keeps versions, the data of the entities which are sent back is taken from the data source.
+public class DeltaMerger {
+
+	public static final int RESULT_IGNORED = 0;
+	public static final int RESULT_ACCEPTED = 1;
+	public static final int RESULT_MERGED = 2;
+
+	private final SyncIndex index;
+	private final DataSource dataSource;
+	private final MergeListener listener;
+	private int acceptedCount = 0;
+	private int mergedCount = 0;
+	private int ignoredCount = 0;
+
+	public DeltaMerger(SyncIndex index, DataSource dataSource, MergeListener listener) {
+		this.index = index;
+		this.dataSource = dataSource;
+		this.listener = listener;
+	}
+
+	public int getAcceptedCount() {
+		return acceptedCount;
+	}
+
+	public int getMergedCount() {
+		return mergedCount;
+	}
+
+	public int getIgnoredCount() {
+		return ignoredCount;
+	}
+
+	public SyncResponse merge(SyncRequest request) {
+
+		Map<String, Long> acceptedRevisions = new HashMap<>();
+
+		for (SyncEntity entity : request.getEntities()) {
+			merge(entity, acceptedRevisions);
+		}
+
+		return createResponse(request.getSinceRevision(), acceptedRevisions);
+
+	}
+
+	// Entities are merged while the request is being read, the request is never completely in memory
+	public SyncResponse merge(Reader reader) throws IOException {
+
+		final Map<String, Long> acceptedRevisions = new HashMap<>();
+
+		SyncRequest request = new SyncReader().read(reader, new SyncReader.EntityHandler() {
+
+			@Override
+			public void entityRead(SyncEntity entity) {
+				merge(entity, acceptedRevisions);
+			}
+		});
+
+		return createResponse(request.getSinceRevision(), acceptedRevisions);
+
+	}
+
+	public int merge(SyncEntity incoming) {
+		return merge(incoming, null);
+	}
+
+	// Accepted revisions are collected in acceptedRevisions (if not null), see createResponse()
+	private int merge(SyncEntity incoming, Map<String, Long> acceptedRevisions) {
+
+		synchronized (index) {
+
+			SyncEntity local = index.getEntity(incoming.getType(), incoming.getId());
+
+			int comparison = local != null ? incoming.getVersionVector().compare(local.getVersionVector()) : VersionVector.AFTER;
+			if (comparison == VersionVector.AFTER) {
+
+				index.put(incoming);
+
+				// The device already has this version, no need to send it back
+				if (acceptedRevisions != null) {
+					acceptedRevisions.put(incoming.getKey(), incoming.getRevision());
+				}
+				acceptedCount++;
+
+				listener.entityChanged(incoming);
+
+				return RESULT_ACCEPTED;
+
+			} else if (comparison == VersionVector.CONCURRENT) {
+
+				// Changed on both sides, the last modification wins. The merged entity gets a version
+				// which is newer than both, so it's sent back and also replaces the version on the device
+				SyncEntity merged;
+				if (incoming.getModified() > local.getModified()) {
+					merged = new SyncEntity(incoming);
+				} else {
+					merged = new SyncEntity(local, false);
+					merged.setData(dataSource.getData(local.getType(), local.getId()));
+				}
+				merged.getVersionVector().merge(incoming.getVersionVector());
+				merged.getVersionVector().merge(local.getVersionVector());
+				merged.getVersionVector().increment(index.getNodeId());
+
+				index.put(merged);
+				mergedCount++;
+
+				listener.entityChanged(merged);
+
+				return RESULT_MERGED;
+
+			} else {
+
+				// Desktop has the same or a newer version, the newer version is sent back if needed
+				ignoredCount++;
+
+				return RESULT_IGNORED;
+
+			}
+
+		}
+
+	}
+
+	public SyncResponse createResponse(long sinceRevision) {
+		return createResponse(sinceRevision, Collections.<String, Long> emptyMap());
+	}
+
+	private SyncResponse createResponse(long sinceRevision, Map<String, Long> acceptedRevisions) {
+
+		synchronized (index) {
+
+			SyncResponse response = new SyncResponse(index.getRevision());
+
+			List<SyncEntity> changes = index.getChangesSince(sinceRevision);
+			for (SyncEntity change : changes) {
+
+				Long acceptedRevision = acceptedRevisions.get(change.getKey());
+				if (acceptedRevision == null || acceptedRevision != change.getRevision()) {
+
+					SyncEntity entity = new SyncEntity(change, false);
+					if (!entity.isDeleted()) {
+						entity.setData(dataSource.getData(entity.getType(), entity.getId()));
+					}
+
+					response.getEntities().add(entity);
+
+				}
+
+			}
+
+			return response;
+
+		}
+
+	}
+
+	public static interface DataSource {
+
+		// Current data of the entity in the content (hours, mileages, calls)
+		public JsonObject getData(String type, String id);
+
+	}
+
+	public static interface MergeListener {
+
+		// Called for every entity which has to be applied to the content (hours, mileages, calls)
+		public void entityChanged(SyncEntity entity);
+
+	}
+
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.sync;
+
+import com.google.gson.JsonObject;
+
+public class SyncEntity {
+
+	public static final String TYPE_HOUR = "hour"; //$NON-NLS-1$
+	public static final String TYPE_MILEAGE = "mileage"; //$NON-NLS-1$
+	public static final String TYPE_CALL = "call"; //$NON-NLS-1$
+
+	private String type = null;
+	private String id = null;
+	private long revision = 0;
+	private long modified = 0;
+	private boolean deleted = false;
+	private VersionVector versionVector = new VersionVector();
+	private JsonObject data = null;
+
+	public SyncEntity() {
+
+	}
+
+	public SyncEntity(String type, String id) {
+		this.type = type;
+		this.id = id;
+	}
+
+	public SyncEntity(SyncEntity entity) {
+		this(entity, true);
+	}
+
+	// Without the data only the version of the entity is copied (as kept by the sync index)
+	public SyncEntity(SyncEntity entity, boolean copyData) {
+		this.type = entity.type;
+		this.id = entity.id;
+		this.revision = entity.revision;
+		this.modified = entity.modified;
+		this.deleted = entity.deleted;
+		this.versionVector = new VersionVector(entity.getVersionVector());
+		this.data = copyData && entity.data != null ? entity.data.deepCopy() : null;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getKey() {
+		return getKey(type, id);
+	}
+
+	// Revision of the data set in which this entity was last changed, assigned by the desktop
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public void setModified(long modified) {
+		this.modified = modified;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(boolean deleted) {
+		this.deleted = deleted;
+	}
+
+	public VersionVector getVersionVector() {
+		if (versionVector == null) {
+			versionVector = new VersionVector();
+		}
+		return versionVector;
+	}
+
+	public void setVersionVector(VersionVector versionVector) {
+		this.versionVector = versionVector;
+	}
+
+	public JsonObject getData() {
+		return data;
+	}
+
+	public void setData(JsonObject data) {
+		this.data = data;
+	}
+
+	public static String getKey(String type, String id) {
+		return type + ":" + id; //$NON-NLS-1$
+	}
+
+}
@@ -0,0 +1,261 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.sync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+// Synced entities of the desktop data set, every change gets the next revision of the data set so the
+// changes since the previous sync of a device can be found without looking at the rest of the history.
+// Only the version of an entity is kept (the data itself is in the content, see DeltaMerger.DataSource),
+// the index file is a log of changed versions (one per line) which is rewritten when it has grown too long.
+public class SyncIndex {
+
+	public static final int COMPACT_FACTOR = 2;
+	public static final int MIN_COMPACT_RECORD_COUNT = 1024;
+
+	private static final Gson GSON = new Gson();
+
+	private final String nodeId;
+	private final Map<String, SyncEntity> entities = new HashMap<>();
+	private final TreeMap<Long, String> revisions = new TreeMap<>();
+	private final Set<String> unsavedKeys = new LinkedHashSet<>();
+	private long revision = 0;
+	private File logFile = null;
+	private int logRecordCount = 0;
+
+	public SyncIndex(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public synchronized long getRevision() {
+		return revision;
+	}
+
+	public synchronized int size() {
+		return entities.size();
+	}
+
+	// The returned entity has no data
+	public synchronized SyncEntity getEntity(String type, String id) {
+		return entities.get(SyncEntity.getKey(type, id));
+	}
+
+	// The returned entities have no data
+	public synchronized List<SyncEntity> getChangesSince(long sinceRevision) {
+
+		List<SyncEntity> changes = new ArrayList<>();
+
+		for (String key : revisions.tailMap(sinceRevision, false).values()) {
+			changes.add(entities.get(key));
+		}
+
+		return changes;
+
+	}
+
+	// Records a change made on the desktop
+	public synchronized SyncEntity update(String type, String id, boolean deleted) {
+
+		SyncEntity entity = entities.get(SyncEntity.getKey(type, id));
+		entity = entity != null ? new SyncEntity(entity, false) : new SyncEntity(type, id);
+
+		entity.setDeleted(deleted);
+		entity.setModified(System.currentTimeMillis());
+		entity.getVersionVector().increment(nodeId);
+
+		put(entity);
+
+		return entity;
+
+	}
+
+	// Assigns the next revision to the entity, the index keeps a copy without the data
+	public synchronized void put(SyncEntity entity) {
+
+		revision++;
+		entity.setRevision(revision);
+
+		add(new SyncEntity(entity, false));
+		unsavedKeys.add(entity.getKey());
+
+	}
+
+	private void add(SyncEntity entity) {
+
+		String key = entity.getKey();
+
+		SyncEntity previous = entities.put(key, entity);
+		if (previous != null) {
+			revisions.remove(previous.getRevision());
+		}
+
+		revisions.put(entity.getRevision(), key);
+		revision = Math.max(revision, entity.getRevision());
+
+	}
+
+	public static SyncIndex load(File file, String nodeId) throws IOException {
+
+		SyncIndex index = new SyncIndex(nodeId);
+
+		if (file.exists()) {
+
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+
+				boolean complete = true;
+
+				String line;
+				while ((line = reader.readLine()) != null) {
+
+					if (line.isEmpty()) {
+						continue;
+					} else if (!complete) {
+						throw new IOException("Sync index could not be read: " + file.getAbsolutePath()); //$NON-NLS-1$
+					}
+
+					JsonObject record;
+					try {
+						record = GSON.fromJson(line, JsonObject.class);
+					} catch (JsonParseException e) {
+						// Only the last record can be incomplete (the application stopped while saving)
+						complete = false;
+						continue;
+					}
+
+					if (record.has(IndexData.ENTITIES)) {
+
+						// Index of an older version (all entities in one object, with their data)
+						IndexData data = GSON.fromJson(record, IndexData.class);
+						if (data.entities != null) {
+							for (SyncEntity entity : data.entities) {
+								index.add(new SyncEntity(entity, false));
+							}
+						}
+						index.revision = Math.max(index.revision, data.revision);
+
+						complete = false;
+
+					} else {
+						index.add(GSON.fromJson(record, SyncEntity.class));
+						index.logRecordCount++;
+					}
+
+				}
+
+				// An incomplete or old index is rewritten by the next save
+				if (complete) {
+					index.logFile = file;
+				}
+
+			} catch (RuntimeException e) {
+				throw new IOException("Sync index could not be read: " + file.getAbsolutePath(), e); //$NON-NLS-1$
+			}
+
+		}
+
+		return index;
+
+	}
+
+	// Appends the entities changed since the previous save, the file is rewritten when the log has grown too long
+	public synchronized void save(File file) throws IOException {
+
+		if (!file.equals(logFile) || logRecordCount + unsavedKeys.size() > Math.max(MIN_COMPACT_RECORD_COUNT, COMPACT_FACTOR * entities.size())) {
+			write(file);
+		} else if (unsavedKeys.size() > 0) {
+
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+				for (String key : unsavedKeys) {
+					writeRecord(writer, entities.get(key));
+				}
+			} catch (IOException e) {
+				logFile = null; // A partly written record must not be followed by other records
+				throw e;
+			}
+
+			logRecordCount += unsavedKeys.size();
+
+		}
+
+		unsavedKeys.clear();
+
+	}
+
+	private void write(File file) throws IOException {
+
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp"); //$NON-NLS-1$
+
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+			for (String key : revisions.values()) {
+				writeRecord(writer, entities.get(key));
+			}
+		}
+
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		logFile = file;
+		logRecordCount = entities.size();
+
+	}
+
+	private static void writeRecord(Writer writer, SyncEntity entity) throws IOException {
+		GSON.toJson(entity, writer);
+		writer.write('\n');
+	}
+
+	private static class IndexData {
+
+		private static final String ENTITIES = "entities"; //$NON-NLS-1$
+
+		private long revision = 0;
+		private List<SyncEntity> entities = null;
+
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.sync;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+// Reads a sync request without loading the whole payload, every entity is parsed and handed to the
+// handler before the next one is read so memory use doesn't depend on the number of entities (as long as
+// the handler doesn't keep the entities, DeltaMerger only keeps their versions in the sync index)
+public class SyncReader {
+
+	public static final String DEVICE_ID = "deviceId"; //$NON-NLS-1$
+	public static final String SINCE_REVISION = "sinceRevision"; //$NON-NLS-1$
+	public static final String ENTITIES = "entities"; //$NON-NLS-1$
+
+	private final TypeAdapter<SyncEntity> entityAdapter;
+
+	public SyncReader() {
+		this(new Gson());
+	}
+
+	public SyncReader(Gson gson) {
+		this.entityAdapter = gson.getAdapter(SyncEntity.class);
+	}
+
+	// Returns the request without entities, the entities are passed to the handler
+	public SyncRequest read(Reader reader, EntityHandler handler) throws IOException {
+
+		SyncRequest request = new SyncRequest();
+
+		try (JsonReader jsonReader = new JsonReader(reader)) {
+
+			jsonReader.beginObject();
+
+			while (jsonReader.hasNext()) {
+
+				String name = jsonReader.nextName();
+				if (DEVICE_ID.equals(name) && jsonReader.peek() != JsonToken.NULL) {
+					request.setDeviceId(jsonReader.nextString());
+				} else if (SINCE_REVISION.equals(name) && jsonReader.peek() != JsonToken.NULL) {
+					request.setSinceRevision(jsonReader.nextLong());
+				} else if (ENTITIES.equals(name) && jsonReader.peek() != JsonToken.NULL) {
+
+					jsonReader.beginArray();
+
+					while (jsonReader.hasNext()) {
+
+						SyncEntity entity = entityAdapter.read(jsonReader);
+						if (entity != null) {
+							handler.entityRead(entity);
+						}
+
+					}
+
+					jsonReader.endArray();
+
+				} else {
+					jsonReader.skipValue();
+				}
+
+			}
+
+			jsonReader.endObject();
+
+		} catch (JsonParseException | IllegalStateException | NumberFormatException e) {
+			throw new IOException("Invalid sync request", e); //$NON-NLS-1$
+		}
+
+		return request;
+
+	}
+
+	public static interface EntityHandler {
+
+		public void entityRead(SyncEntity entity) throws IOException;
+
+	}
+
+}
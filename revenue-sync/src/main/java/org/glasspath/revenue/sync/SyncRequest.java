@@ -0,0 +1,72 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Sent by a device, contains the entities changed on the device and the revision of the
+// data set it received during the previous sync
+public class SyncRequest {
+
+	private String deviceId = null;
+	private long sinceRevision = 0;
+	private List<SyncEntity> entities = new ArrayList<>();
+
+	public SyncRequest() {
+
+	}
+
+	public SyncRequest(String deviceId, long sinceRevision) {
+		this.deviceId = deviceId;
+		this.sinceRevision = sinceRevision;
+	}
+
+	public String getDeviceId() {
+		return deviceId;
+	}
+
+	public void setDeviceId(String deviceId) {
+		this.deviceId = deviceId;
+	}
+
+	public long getSinceRevision() {
+		return sinceRevision;
+	}
+
+	public void setSinceRevision(long sinceRevision) {
+		this.sinceRevision = sinceRevision;
+	}
+
+	public List<SyncEntity> getEntities() {
+		if (entities == null) {
+			entities = new ArrayList<>();
+		}
+		return entities;
+	}
+
+	public void setEntities(List<SyncEntity> entities) {
+		this.entities = entities;
+	}
+
+}
@@ -0,0 +1,62 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Sent back to the device, contains the entities which were changed since the revision in the request
+// (including the results of merged conflicts), the device stores the revision for the next sync
+public class SyncResponse {
+
+	private long revision = 0;
+	private List<SyncEntity> entities = new ArrayList<>();
+
+	public SyncResponse() {
+
+	}
+
+	public SyncResponse(long revision) {
+		this.revision = revision;
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
+	public List<SyncEntity> getEntities() {
+		if (entities == null) {
+			entities = new ArrayList<>();
+		}
+		return entities;
+	}
+
+	public void setEntities(List<SyncEntity> entities) {
+		this.entities = entities;
+	}
+
+}
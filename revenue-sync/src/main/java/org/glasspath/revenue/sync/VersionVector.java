@@ -0,0 +1,108 @@
+/*
+ * This file is part of Glasspath Revenue.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.revenue.sync;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// Change counter per node (device or desktop) which modified an entity, comparing two vectors tells if one
+// change happened after the other or if both were made independently (a conflict)
+public class VersionVector {
+
+	public static final int EQUAL = 0;
+	public static final int BEFORE = -1;
+	public static final int AFTER = 1;
+	public static final int CONCURRENT = 2;
+
+	private Map<String, Long> counters = new TreeMap<>();
+
+	public VersionVector() {
+
+	}
+
+	public VersionVector(VersionVector versionVector) {
+		counters.putAll(versionVector.getCounters());
+	}
+
+	public Map<String, Long> getCounters() {
+		if (counters == null) {
+			counters = new TreeMap<>();
+		}
+		return counters;
+	}
+
+	public long get(String node) {
+		Long counter = getCounters().get(node);
+		return counter != null ? counter : 0L;
+	}
+
+	public void increment(String node) {
+		getCounters().put(node, get(node) + 1);
+	}
+
+	public void merge(VersionVector other) {
+		for (Map.Entry<String, Long> entry : other.getCounters().entrySet()) {
+			if (entry.getValue() > get(entry.getKey())) {
+				getCounters().put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	public int compare(VersionVector other) {
+
+		boolean before = false;
+		boolean after = false;
+
+		for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+			long otherCounter = other.get(entry.getKey());
+			if (entry.getValue() > otherCounter) {
+				after = true;
+			} else if (entry.getValue() < otherCounter) {
+				before = true;
+			}
+		}
+
+		for (Map.Entry<String, Long> entry : other.getCounters().entrySet()) {
+			if (entry.getValue() > get(entry.getKey())) {
+				before = true;
+			}
+		}
+
+		if (before && after) {
+			return CONCURRENT;
+		} else if (before) {
+			return BEFORE;
+		} else if (after) {
+			return AFTER;
+		} else {
+			return EQUAL;
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return getCounters().toString();
+	}
+
+}